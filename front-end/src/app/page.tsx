@@ -26,34 +26,52 @@ export default function Home() {
 
         try {
             const CHUNK_SIZE = 5 * 1024 * 1024; // 5 MB
-            const totalChunks = Math.ceil(file.size / CHUNK_SIZE);
+            const PARALLEL_STREAMS = 4;
+            const totalChunks = Math.max(1, Math.ceil(file.size / CHUNK_SIZE));
             let code: string | null = null;
+            let nextChunk = 0;
+            let uploaded = 0;
 
-            for (let i = 0; i < file.size; i += CHUNK_SIZE) {
-                const chunk = file.slice(i, i + CHUNK_SIZE);
-                const chunkIndex = Math.floor(i / CHUNK_SIZE);
-
-                const headers: Record<string, string> = {
-                    'Content-Type': 'application/octet-stream',
+            const session = await axios.post('/api/upload/session', null, {
+                headers: {
                     'X-File-Name': file.name,
-                    'X-Chunk-Index': chunkIndex.toString(),
-                    'X-Total-Chunks': totalChunks.toString(),
                     'X-File-Size': file.size.toString(),
-                };
-                if (passphrase) headers['X-Passphrase'] = passphrase;
-                if (ttlMillis) headers['X-TTL-Millis'] = ttlMillis.toString();
-                if (oneTime) headers['X-One-Time'] = 'true';
-
-                const res = await axios.post('/api/upload', chunk, { headers });
-
-                // Update progress locally
-                const uploaded = Math.min(i + CHUNK_SIZE, file.size);
-                setProgress((uploaded / file.size) * 100);
-
-                if (chunkIndex === totalChunks - 1) {
-                    code = res.data.fileId;
+                    'X-Chunk-Size': CHUNK_SIZE.toString(),
+                },
+            });
+            const uploadId: string = session.data.uploadId;
+
+            // Chunks are written at their own offset server-side, so they can go out of order
+            const uploadWorker = async () => {
+                while (nextChunk < totalChunks) {
+                    const chunkIndex = nextChunk++;
+                    const start = chunkIndex * CHUNK_SIZE;
+                    const chunk = file.slice(start, start + CHUNK_SIZE);
+
+                    const headers: Record<string, string> = {
+                        'Content-Type': 'application/octet-stream',
+                        'X-Upload-Id': uploadId,
+                        'X-Chunk-Index': chunkIndex.toString(),
+                    };
+                    if (passphrase) headers['X-Passphrase'] = passphrase;
+                    if (ttlMillis) headers['X-TTL-Millis'] = ttlMillis.toString();
+                    if (oneTime) headers['X-One-Time'] = 'true';
+
+                    const res = await axios.post('/api/upload', chunk, { headers });
+
+                    // Update progress locally
+                    uploaded += chunk.size;
+                    setProgress((uploaded / file.size) * 100);
+
+                    if (res.data.fileId) {
+                        code = res.data.fileId;
+                    }
                 }
-            }
+            };
+
+            await Promise.all(
+                Array.from({ length: Math.min(PARALLEL_STREAMS, totalChunks) }, uploadWorker)
+            );
 
             if (code) {
                 setFileId(code);
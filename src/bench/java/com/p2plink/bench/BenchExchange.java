@@ -0,0 +1,158 @@
+package com.p2plink.bench;
+
+import com.p2plink.utils.ZeroCopySink;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * In-memory HttpExchange for driving the services without a socket. The response body counts and
+ * discards what it is given; with {@code sendfile} it also implements {@link ZeroCopySink} and hands
+ * file regions to {@code transferTo} on /dev/null, so the zero-copy branch is the one exercised.
+ */
+final class BenchExchange extends HttpExchange {
+
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final URI uri;
+    private final OutputStream body;
+    private int status = -1;
+    private long bytes;
+
+    BenchExchange(String uri, boolean sendfile) {
+        this.uri = URI.create(uri);
+        this.body = sendfile ? new SendfileBody() : new CountingBody();
+    }
+
+    long bytesWritten() {
+        return bytes;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return "GET";
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return InputStream.nullInputStream();
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return body;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+        status = rCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return new InetSocketAddress("127.0.0.1", 40000);
+    }
+
+    @Override
+    public int getResponseCode() {
+        return status;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return new InetSocketAddress("127.0.0.1", 8080);
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return null;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private class CountingBody extends OutputStream {
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    private final class SendfileBody extends CountingBody implements ZeroCopySink {
+        private FileChannel devNull;
+
+        @Override
+        public long transferFrom(FileChannel src, long position, long count) throws IOException {
+            if (devNull == null) devNull = FileChannel.open(Path.of("/dev/null"), StandardOpenOption.WRITE);
+            long n = src.transferTo(position, count, devNull);
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public void write(ByteBuffer src) {
+            bytes += src.remaining();
+            src.position(src.limit());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (devNull != null) devNull.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.p2plink.bench;
+
+import com.p2plink.services.DownloadService;
+import com.p2plink.services.FileRegistry;
+import com.p2plink.utils.TransferUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code DownloadService.streamFile} for a whole file and for a 1 MB range in the middle of it, with
+ * the response written through a heap buffer ({@code sendfile=false}) or handed to transferTo.
+ * No socket is involved; see DownloadCpuBenchmark for the end-to-end cost over loopback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"67108864"})
+    public long fileSize;
+
+    @Param({"false", "true"})
+    public boolean sendfile;
+
+    private Path file;
+    private DownloadService downloads;
+    private String code;
+    private String range;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("p2plink-bench", ".bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(fileSize);
+        }
+        FileRegistry registry = new FileRegistry();
+        code = registry.registerFile(file.toString(), "bench.bin", 0L, false, null);
+        downloads = new DownloadService(registry, null, TransferUtils.DEFAULT_WINDOW);
+        long mid = fileSize / 2;
+        range = "bytes=" + mid + "-" + (mid + 1024 * 1024 - 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long full() throws IOException {
+        BenchExchange ex = new BenchExchange("/download/" + code, sendfile);
+        downloads.streamFile(ex, code);
+        return ex.bytesWritten();
+    }
+
+    @Benchmark
+    public long ranged() throws IOException {
+        BenchExchange ex = new BenchExchange("/download/" + code, sendfile);
+        ex.getRequestHeaders().add("Range", range);
+        downloads.streamFile(ex, code);
+        return ex.bytesWritten();
+    }
+}
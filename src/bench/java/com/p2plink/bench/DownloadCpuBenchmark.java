@@ -0,0 +1,115 @@
+package com.p2plink.bench;
+
+import com.p2plink.handler.DownloadHandler;
+import com.p2plink.server.NioHttpServer;
+import com.p2plink.services.DownloadService;
+import com.p2plink.services.FileRegistry;
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures process CPU time per GB served by the download endpoint over loopback, comparing the
+ * old 8 KB FileInputStream copy loop against the shared transfer path at several window sizes, on
+ * both the JDK HttpServer and the NIO engine.
+ *
+ * Run with: mvn -Pbench compile exec:java -Dexec.mainClass=com.p2plink.bench.DownloadCpuBenchmark [-Dexec.args="1024 5"]
+ * (arguments: file size in MB, measured runs per configuration)
+ */
+public class DownloadCpuBenchmark {
+
+    private static final int[] WINDOWS = {8 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 8 * 1024 * 1024};
+
+    public static void main(String[] args) throws Exception {
+        long sizeMb = args.length > 0 ? Long.parseLong(args[0]) : 512;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path file = Files.createTempFile("p2plink-bench", ".bin");
+        file.toFile().deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(sizeMb * 1024 * 1024);
+        }
+        FileRegistry registry = new FileRegistry();
+        String code = registry.registerFile(file.toString(), "bench.bin", 0L, false, null);
+
+        System.out.printf("%-36s %12s %12s%n", "path", "cpu ms/GB", "MB/s");
+        for (String engine : new String[]{"jdk", "nio"}) {
+            run(engine, file, registry, code, runs);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String engine, Path file, FileRegistry registry, String code, int runs) throws IOException {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+        HttpServer server = "nio".equals(engine) ? NioHttpServer.create(address) : HttpServer.create(address, 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/legacy", exchange -> {
+            exchange.sendResponseHeaders(200, Files.size(file));
+            try (FileInputStream fis = new FileInputStream(file.toFile());
+                 OutputStream os = exchange.getResponseBody()) {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = fis.read(buf)) != -1) {
+                    os.write(buf, 0, n);
+                }
+            }
+        });
+        for (int window : WINDOWS) {
+            server.createContext("/w" + window + "/download", new DownloadHandler(new DownloadService(registry, null, window)));
+        }
+        server.start();
+        int port = server.getAddress().getPort();
+
+        report(engine + ", legacy 8K stream copy", "http://127.0.0.1:" + port + "/legacy", null, runs);
+        for (int window : WINDOWS) {
+            String url = "http://127.0.0.1:" + port + "/w" + window + "/download/" + code;
+            report(engine + ", full, window " + window / 1024 + "K", url, null, runs);
+            report(engine + ", range, window " + window / 1024 + "K", url, "bytes=1-", runs);
+        }
+        server.stop(0);
+    }
+
+    private static void report(String label, String url, String range, int runs) throws IOException {
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        fetch(url, range); // warm-up
+
+        long bytes = 0;
+        long cpuStart = os.getProcessCpuTime();
+        long wallStart = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            bytes += fetch(url, range);
+        }
+        long cpuNanos = os.getProcessCpuTime() - cpuStart;
+        long wallNanos = System.nanoTime() - wallStart;
+
+        double gb = bytes / (1024.0 * 1024 * 1024);
+        double mbPerSec = bytes / (1024.0 * 1024) / (wallNanos / 1e9);
+        System.out.printf("%-36s %12.1f %12.1f%n", label, cpuNanos / 1e6 / gb, mbPerSec);
+    }
+
+    private static long fetch(String url, String range) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        if (range != null) conn.setRequestProperty("Range", range);
+        long total = 0;
+        try (InputStream in = conn.getInputStream()) {
+            byte[] buf = new byte[256 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                total += n;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,368 @@
+package com.p2plink.bench;
+
+import com.p2plink.controller.FileController;
+import com.p2plink.utils.Metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end load against a {@link FileController} started in this JVM on loopback. Each worker is a
+ * virtual thread that repeats one operation until the run ends:
+ * <ul>
+ *   <li>uploaders: a fresh random file of {@code fileSize}, POSTed in {@code chunkSize} chunks;</li>
+ *   <li>downloaders: a whole seeded file over {@code /download};</li>
+ *   <li>rangers: a random {@code rangeSize} slice of a seeded file with {@code Range};</li>
+ *   <li>raw: a whole seeded file from the raw {@code FileServer} port (v1 protocol);</li>
+ *   <li>watchers: hold an SSE subscription on a seeded file and count the events it gets.</li>
+ * </ul>
+ * Operations completed during {@code warmup} seconds are not counted. The report gives per operation
+ * throughput, p50/p99/p999 latency and error rate, and {@code out} receives it as JSON together with
+ * the server's own /api/metrics snapshot, so runs under different configurations can be compared.
+ *
+ * <p>Arguments are {@code key=value}; {@code mvn -Pbench compile exec:exec@load -Dload.args="downloaders=64 duration=30"}.
+ * Server settings come from the usual P2PLINK_* environment variables. Uploaded files are written below
+ * the working directory and expire like any other share.
+ */
+public final class LoadTest {
+
+    private static final Pattern FILE_ID = Pattern.compile("\"fileId\":\"(\\d{6})\"");
+
+    private final Map<String, Long> config = new LinkedHashMap<>();
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .build();
+    private final String base;
+    private final int nioPort;
+    private final List<String> seeded = new ArrayList<>();
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+    private volatile boolean running = true;
+
+    private LoadTest(Map<String, Long> config) {
+        this.config.putAll(config);
+        this.base = "http://127.0.0.1:" + config.get("httpPort");
+        this.nioPort = config.get("nioPort").intValue();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Long> config = new LinkedHashMap<>();
+        config.put("duration", 30L);
+        config.put("warmup", 5L);
+        config.put("uploaders", 4L);
+        config.put("downloaders", 32L);
+        config.put("rangers", 16L);
+        config.put("raw", 8L);
+        config.put("watchers", 256L);
+        config.put("seedFiles", 16L);
+        config.put("fileSize", 1024L * 1024);
+        config.put("chunkSize", 256L * 1024);
+        config.put("rangeSize", 64L * 1024);
+        config.put("httpPort", 18080L);
+        config.put("nioPort", 19090L);
+        String out = "load-result.json";
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+            String key = arg.substring(0, eq);
+            if (key.equals("out")) {
+                out = arg.substring(eq + 1);
+            } else if (config.containsKey(key)) {
+                config.put(key, Long.parseLong(arg.substring(eq + 1)));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + key + "; known: out, " + config.keySet());
+            }
+        }
+
+        FileController controller = new FileController(config.get("httpPort").intValue(), config.get("nioPort").intValue());
+        controller.start();
+        Thread.sleep(500); // the raw FileServer binds on its own thread
+        int status = 0;
+        try {
+            String json = new LoadTest(config).run();
+            Files.writeString(Path.of(out), json);
+            System.out.println("Wrote " + Path.of(out).toAbsolutePath());
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            controller.stop();
+        }
+        // FileServer and the schedulers run on non-daemon threads with no shutdown hook
+        System.exit(status);
+    }
+
+    private String run() throws Exception {
+        long fileSize = config.get("fileSize");
+        for (int i = 0; i < config.get("seedFiles"); i++) {
+            seeded.add(upload(randomContent(fileSize), fileSize, config.get("chunkSize")));
+        }
+        System.out.printf("Seeded %d files of %d bytes; running %ds (+%ds warmup)%n",
+                seeded.size(), fileSize, config.get("duration"), config.get("warmup"));
+
+        Op uploads = new Op("upload"), downloads = new Op("download"), ranges = new Op("range"),
+                raw = new Op("raw"), sse = new Op("sse_connect");
+        AtomicLong sseEvents = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        List<Thread> watchers = new ArrayList<>();
+        int n = (int) (config.get("uploaders") + config.get("downloaders") + config.get("rangers")
+                + config.get("raw") + config.get("watchers"));
+        CountDownLatch started = new CountDownLatch(n);
+        long now = System.nanoTime();
+        measureFrom = now + config.get("warmup") * 1_000_000_000L;
+        measureUntil = measureFrom + config.get("duration") * 1_000_000_000L;
+
+        for (int i = 0; i < config.get("watchers"); i++) {
+            watchers.add(Thread.ofVirtual().start(() -> watch(sse, sseEvents, started)));
+        }
+        for (int i = 0; i < config.get("uploaders"); i++) {
+            workers.add(Thread.ofVirtual().start(() -> loop(uploads, started, () -> {
+                long size = config.get("fileSize");
+                upload(randomContent(size), size, config.get("chunkSize"));
+                return size;
+            })));
+        }
+        for (int i = 0; i < config.get("downloaders"); i++) {
+            workers.add(Thread.ofVirtual().start(() -> loop(downloads, started, () -> download(anySeeded(), null))));
+        }
+        for (int i = 0; i < config.get("rangers"); i++) {
+            workers.add(Thread.ofVirtual().start(() -> loop(ranges, started, () -> {
+                long len = Math.min(config.get("rangeSize"), fileSize);
+                long start = ThreadLocalRandom.current().nextLong(fileSize - len + 1);
+                return download(anySeeded(), "bytes=" + start + "-" + (start + len - 1));
+            })));
+        }
+        for (int i = 0; i < config.get("raw"); i++) {
+            workers.add(Thread.ofVirtual().start(() -> loop(raw, started, () -> rawFetch(anySeeded()))));
+        }
+        started.await();
+
+        while (System.nanoTime() - measureUntil < 0) {
+            Thread.sleep(Math.max(1, Math.min(1000, (measureUntil - System.nanoTime()) / 1_000_000)));
+        }
+        running = false;
+        // Operations finishing after the window are not counted; give in-flight ones a moment, then report
+        long joinUntil = System.nanoTime() + 10_000_000_000L;
+        for (Thread t : watchers) t.interrupt();
+        for (Thread t : workers) t.join(Math.max(1, (joinUntil - System.nanoTime()) / 1_000_000));
+
+        double seconds = config.get("duration");
+        StringBuilder json = new StringBuilder("{\"config\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> e : config.entrySet()) {
+            if (!first) json.append(',');
+            first = false;
+            json.append('"').append(e.getKey()).append("\":").append(e.getValue());
+        }
+        json.append("},\"operations\":{");
+        System.out.printf("%n%-12s %9s %9s %8s %9s %9s %9s %9s %9s%n",
+                "op", "count", "ops/s", "MB/s", "err%", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        first = true;
+        for (Op op : List.of(uploads, downloads, ranges, raw, sse)) {
+            if (!first) json.append(',');
+            first = false;
+            op.report(seconds, json);
+        }
+        json.append("},\"sseEvents\":").append(sseEvents.get());
+        System.out.printf("SSE events delivered to watchers: %d (%.0f/s)%n", sseEvents.get(), sseEvents.get() / seconds);
+        return json.append(",\"server\":").append(Metrics.toJson()).append('}').toString();
+    }
+
+    private interface Action {
+        /** Performs one operation and returns the payload bytes it moved. */
+        long run() throws Exception;
+    }
+
+    private void loop(Op op, CountDownLatch started, Action action) {
+        started.countDown();
+        while (running) {
+            long start = System.nanoTime();
+            long bytes;
+            boolean ok;
+            try {
+                bytes = action.run();
+                ok = true;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (!running) return;
+                bytes = 0;
+                ok = false;
+                op.lastError = e.toString();
+            }
+            long end = System.nanoTime();
+            if (end - measureFrom >= 0 && end - measureUntil < 0) op.record(end - start, bytes, ok);
+        }
+    }
+
+    // An SSE subscriber for the whole run; connection time is its latency, a stream that ends early an error
+    private void watch(Op op, AtomicLong events, CountDownLatch started) {
+        started.countDown();
+        while (running) {
+            long start = System.nanoTime();
+            try {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/events/" + anySeeded())).GET().build();
+                HttpResponse<InputStream> response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                long connected = System.nanoTime();
+                if (response.statusCode() != 200) throw new IOException("HTTP " + response.statusCode());
+                // Most subscriptions are made during warmup, so connects count from the start of the run
+                if (connected - measureUntil < 0) op.record(connected - start, 0, true);
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        long now = System.nanoTime();
+                        if (line.startsWith("data:") && now - measureFrom >= 0 && now - measureUntil < 0) {
+                            events.incrementAndGet();
+                        }
+                        if (!running) return;
+                    }
+                }
+                if (running) throw new IOException("Event stream ended");
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (!running) return;
+                long now = System.nanoTime();
+                if (now - measureFrom >= 0 && now - measureUntil < 0) op.record(now - start, 0, false);
+                op.lastError = e.toString();
+            }
+        }
+    }
+
+    private String anySeeded() {
+        return seeded.get(ThreadLocalRandom.current().nextInt(seeded.size()));
+    }
+
+    // Distinct content every time, so content-addressed storage cannot turn uploads into no-ops
+    private static byte[] randomContent(long size) {
+        byte[] data = new byte[(int) size];
+        ThreadLocalRandom.current().nextBytes(data);
+        return data;
+    }
+
+    private String upload(byte[] data, long size, long chunkSize) throws IOException, InterruptedException {
+        int chunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        // Chunks without an upload id are grouped into a session by name and size
+        String name = "load-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".bin";
+        String body = null;
+        for (int i = 0; i < chunks; i++) {
+            int from = (int) (i * chunkSize);
+            int to = (int) Math.min(size, from + chunkSize);
+            HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/upload"))
+                    .header("X-File-Name", name)
+                    .header("X-Chunk-Index", Integer.toString(i))
+                    .header("X-Total-Chunks", Integer.toString(chunks))
+                    .header("X-File-Size", Long.toString(size))
+                    .header("X-Chunk-Size", Long.toString(chunkSize))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(data, from, to - from))
+                    .build();
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) throw new IOException("Upload chunk " + i + ": HTTP " + response.statusCode());
+            body = response.body();
+        }
+        Matcher m = FILE_ID.matcher(body);
+        if (!m.find()) throw new IOException("Upload did not complete: " + body);
+        return m.group(1);
+    }
+
+    private long download(String code, String range) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(base + "/download/" + code)).GET();
+        if (range != null) builder.header("Range", range);
+        HttpResponse<InputStream> response = http.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        long bytes;
+        try (InputStream in = response.body()) {
+            bytes = in.transferTo(OutputStream.nullOutputStream());
+        }
+        int expected = range == null ? 200 : 206;
+        if (response.statusCode() != expected) throw new IOException("Download: HTTP " + response.statusCode());
+        long length = response.headers().firstValueAsLong("Content-Length").orElse(bytes);
+        if (bytes != length) throw new IOException("Download: " + bytes + " of " + length + " bytes");
+        return bytes;
+    }
+
+    private long rawFetch(String code) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", nioPort)) {
+            socket.setSoTimeout(30_000);
+            socket.getOutputStream().write(("GET " + code + "\n").getBytes(StandardCharsets.US_ASCII));
+            long bytes = socket.getInputStream().transferTo(OutputStream.nullOutputStream());
+            if (bytes != config.get("fileSize")) throw new IOException("Raw fetch: " + bytes + " bytes");
+            return bytes;
+        }
+    }
+
+    /** Latencies of one operation, kept exactly: runs are short enough to sort them all at the end. */
+    private static final class Op {
+        final String name;
+        private long[] latencies = new long[1024];
+        private int count;
+        private long errors;
+        private long bytes;
+        volatile String lastError;
+
+        Op(String name) {
+            this.name = name;
+        }
+
+        synchronized void record(long nanos, long moved, boolean ok) {
+            if (!ok) {
+                errors++;
+                return;
+            }
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+            bytes += moved;
+        }
+
+        synchronized void report(double seconds, StringBuilder json) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            long total = count + errors;
+            double errorRate = total == 0 ? 0 : (double) errors / total;
+            double p50 = quantile(sorted, 0.5), p99 = quantile(sorted, 0.99), p999 = quantile(sorted, 0.999);
+            double max = count == 0 ? 0 : sorted[count - 1] / 1e6;
+            System.out.printf("%-12s %9d %9.1f %8.1f %9.3f %9.2f %9.2f %9.2f %9.2f%n", name, count, count / seconds,
+                    bytes / seconds / (1024 * 1024), errorRate * 100, p50, p99, p999, max);
+            if (errors > 0) System.out.printf("  %d errors, last: %s%n", errors, lastError);
+            json.append('"').append(name).append("\":{\"count\":").append(count)
+                    .append(",\"errors\":").append(errors)
+                    .append(",\"errorRate\":").append(errorRate)
+                    .append(",\"opsPerSec\":").append(count / seconds)
+                    .append(",\"bytesPerSec\":").append((long) (bytes / seconds))
+                    .append(",\"p50Ms\":").append(p50)
+                    .append(",\"p99Ms\":").append(p99)
+                    .append(",\"p999Ms\":").append(p999)
+                    .append(",\"maxMs\":").append(max).append('}');
+        }
+
+        private static double quantile(long[] sorted, double q) {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(q * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
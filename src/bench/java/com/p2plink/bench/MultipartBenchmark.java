@@ -0,0 +1,87 @@
+package com.p2plink.bench;
+
+import com.p2plink.parser.Multiparser;
+import com.p2plink.utils.ParseResult;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multipart parsing: the in-memory {@code parse()}, the streaming parser fed in 64 KB reads as the
+ * upload handler does, and the raw {@code findSequence} boundary search.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartBenchmark {
+
+    private static final String BOUNDARY = "----P2PLinkBenchBoundary7MA4YWxkTrZu0gW";
+
+    @Param({"65536", "8388608"})
+    public int payloadSize;
+
+    private byte[] body;
+    private byte[] delimiter;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payloadSize + 512);
+        out.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        body = out.toByteArray();
+        delimiter = ("\r\n--" + BOUNDARY).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public ParseResult parseInMemory() {
+        return new Multiparser(body, BOUNDARY).parse();
+    }
+
+    @Benchmark
+    public long parseStreaming() throws IOException {
+        long[] size = new long[1];
+        WritableByteChannel discard = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                size[0] += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Multiparser parser = new Multiparser(BOUNDARY, part -> discard);
+        for (int pos = 0; pos < body.length; pos += 64 * 1024) {
+            parser.feed(ByteBuffer.wrap(body, pos, Math.min(64 * 1024, body.length - pos)));
+        }
+        parser.finish();
+        return size[0];
+    }
+
+    @Benchmark
+    public int findSequence() {
+        return ParseResult.findSequence(body, delimiter, 0);
+    }
+}
@@ -0,0 +1,39 @@
+package com.p2plink.bench;
+
+import com.p2plink.services.SseHub;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code SseHub.publish} to one file watched by 1, 100 and 10k subscribers. Deliveries run on the
+ * publishing thread, so a score covers formatting, queueing and writing the event to every subscriber.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SseFanoutBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int subscribers;
+
+    private SseHub hub;
+
+    @Setup
+    public void setup() throws IOException {
+        hub = new SseHub(256, SseHub.SlowConsumerPolicy.DROP_OLDEST, Runnable::run, 64);
+        for (int i = 0; i < subscribers; i++) {
+            hub.subscribe("bench.bin", new BenchExchange("/events/bench.bin", false));
+        }
+    }
+
+    @Benchmark
+    public void publish() {
+        hub.publish("bench.bin", "download_started",
+                "{\"fileId\":\"000001\",\"partial\":false,\"start\":0,\"total\":67108864}");
+    }
+}
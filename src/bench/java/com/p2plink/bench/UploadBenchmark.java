@@ -0,0 +1,59 @@
+package com.p2plink.bench;
+
+import com.p2plink.services.FileRegistry;
+import com.p2plink.services.SseHub;
+import com.p2plink.services.UploadService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code UploadService.saveChunk} throughput: each operation writes, hashes and journals the next chunk
+ * of a session, and the chunk that completes a session also pays for finalizing it. Multiply ops/s by
+ * the chunk size for bytes/s. Files land in {@code uploads/} under the working directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+
+    private static final int CHUNKS_PER_SESSION = 64;
+
+    @Param({"262144", "1048576", "4194304"})
+    public int chunkSize;
+
+    private UploadService uploads;
+    private byte[] chunk;
+    private UploadService.UploadSession session;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        uploads = new UploadService(new FileRegistry(), new SseHub());
+        chunk = new byte[chunkSize];
+        new Random(42).nextBytes(chunk);
+        session = newSession();
+    }
+
+    @Benchmark
+    public boolean saveChunk() throws IOException {
+        int index = next++;
+        boolean complete = uploads.saveChunk(session, index, (long) index * chunkSize, new ByteArrayInputStream(chunk));
+        if (complete) {
+            uploads.finalizeUpload(session);
+            session = newSession();
+        }
+        return complete;
+    }
+
+    private UploadService.UploadSession newSession() throws IOException {
+        next = 0;
+        return uploads.createSession("bench.bin", (long) chunkSize * CHUNKS_PER_SESSION, CHUNKS_PER_SESSION, chunkSize);
+    }
+}
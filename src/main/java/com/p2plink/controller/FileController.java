@@ -1,18 +1,31 @@
 package com.p2plink.controller;
 
+import com.p2plink.handler.BandwidthHandler;
+import com.p2plink.handler.ConcurrencyLimitHandler;
 import com.p2plink.handler.CorsHandler;
 import com.p2plink.handler.DownloadHandler;
+import com.p2plink.handler.SseHandler;
 import com.p2plink.handler.UploadHandler;
 import com.p2plink.server.FileServer;
+import com.p2plink.server.NioHttpServer;
+import com.p2plink.services.DownloadAuth;
 import com.p2plink.services.FileRegistry;
+import com.p2plink.services.HotFileCache;
 import com.p2plink.services.SseHub;
 import com.p2plink.services.UploadService;
 import com.p2plink.services.DownloadService;
+import com.p2plink.utils.BandwidthScheduler;
+import com.p2plink.utils.Metrics;
+import com.p2plink.utils.TransferUtils;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -27,42 +40,165 @@ public class FileController {
 
 
     public FileController(int httpPort, int nioPort) throws IOException {
-        this.server = HttpServer.create(new InetSocketAddress("0.0.0.0", httpPort), 0);
+        this.server = createServer(new InetSocketAddress("0.0.0.0", httpPort));
         this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads";
-        this.executorService = Executors.newFixedThreadPool(16);
+        this.executorService = createExecutor();
         this.scheduled = Executors.newScheduledThreadPool(2);
 
         initUploadDir();
 
-        FileRegistry registry = new FileRegistry();
-        SseHub sseHub = new SseHub();
+        // Share codes survive restarts: snapshot and journal live in P2PLINK_REGISTRY_DIR
+        FileRegistry registry = new FileRegistry(Paths.get(System.getenv().getOrDefault("P2PLINK_REGISTRY_DIR", "registry")));
+        registry.setBcryptCost((int) envLong("P2PLINK_BCRYPT_COST", 10));
+        // P2PLINK_SSE_QUEUE events may wait per subscriber; P2PLINK_SSE_POLICY=disconnect (default) or drop_oldest;
+        // the last P2PLINK_SSE_REPLAY events per file are kept for Last-Event-ID resume
+        SseHub sseHub = new SseHub((int) envLong("P2PLINK_SSE_QUEUE", 256), ssePolicy(),
+                Executors.newVirtualThreadPerTaskExecutor(),
+                (int) envLong("P2PLINK_SSE_REPLAY", 64));
+        sseHub.setProgressLimits(envLong("P2PLINK_SSE_PROGRESS_MS", 250), (int) envLong("P2PLINK_SSE_PROGRESS_STEP", 1));
         sseHub.startHeartbeats(scheduled);
+        sseHub.startProgressFlusher(scheduled);
 
         // Services
         UploadService uploadService = new UploadService(registry,sseHub);
-        DownloadService downloadService = new DownloadService(registry,sseHub);
-        new Thread(new FileServer(nioPort, registry)).start();
+        // Largest accepted upload in bytes, 16 GiB by default (0 = unlimited); bigger ones are refused with 413
+        uploadService.setMaxUploadBytes(envLong("P2PLINK_MAX_UPLOAD_BYTES", 16L * 1024 * 1024 * 1024));
+        // A passphrase check issues a download token valid for P2PLINK_TOKEN_TTL_MS
+        DownloadAuth downloadAuth = new DownloadAuth(envLong("P2PLINK_TOKEN_TTL_MS", 10 * 60 * 1000),
+                (int) envLong("P2PLINK_AUTH_CACHE", 10_000));
+        DownloadService downloadService = new DownloadService(registry,sseHub,
+                (int) envLong("P2PLINK_TRANSFER_WINDOW", TransferUtils.DEFAULT_WINDOW), downloadAuth);
+        // Egress limits in bytes/s (0 = unlimited), shared by HTTP downloads and the file port;
+        // POST /api/bandwidth with X-Admin-Token = P2PLINK_ADMIN_TOKEN changes them at runtime
+        BandwidthScheduler bandwidth = new BandwidthScheduler(envLong("P2PLINK_BW_GLOBAL", 0),
+                envLong("P2PLINK_BW_SHARE", 0), envLong("P2PLINK_BW_CLIENT", 0));
+        downloadService.setBandwidthScheduler(bandwidth);
+        // Comma-separated proxy addresses (e.g. the nginx in front of /api) whose X-Real-IP is trusted
+        downloadService.setTrustedProxies(envList("P2PLINK_TRUSTED_PROXIES"));
+        // Popular small files are kept in memory: P2PLINK_HOT_CACHE_BYTES in total (0 = off), files up to
+        // P2PLINK_HOT_CACHE_FILE_BYTES, admitted once requested P2PLINK_HOT_CACHE_ADMIT times recently
+        HotFileCache hotCache = new HotFileCache(envLong("P2PLINK_HOT_CACHE_BYTES", 64 * 1024 * 1024),
+                envLong("P2PLINK_HOT_CACHE_FILE_BYTES", 4 * 1024 * 1024), (int) envLong("P2PLINK_HOT_CACHE_ADMIT", 3));
+        registry.setHotFileCache(hotCache);
+        downloadService.setHotFileCache(hotCache);
+        downloadService.setSegmentHint((int) envLong("P2PLINK_DOWNLOAD_SEGMENTS", 4),
+                envLong("P2PLINK_SEGMENT_MIN_BYTES", 8 * 1024 * 1024));
+        new Thread(new FileServer(nioPort, registry,
+                (int) envLong("P2PLINK_FILESERVER_REACTORS", Runtime.getRuntime().availableProcessors()),
+                bandwidth)).start();
 
-        // REST endpoints
-        server.createContext("/upload", new UploadHandler(uploadService));
-        server.createContext("/download", new DownloadHandler(downloadService));
-        server.createContext("/", new CorsHandler());
+        // REST endpoints, each class of request with its own concurrency limit
+        long maxWait = envLong("P2PLINK_LIMIT_WAIT_MS", 2000);
+        server.createContext("/upload", new ConcurrencyLimitHandler(new UploadHandler(uploadService),
+                (int) envLong("P2PLINK_MAX_UPLOADS", 256), maxWait));
+        server.createContext("/download", new ConcurrencyLimitHandler(new DownloadHandler(downloadService),
+                (int) envLong("P2PLINK_MAX_DOWNLOADS", 1024), maxWait));
+        // At most P2PLINK_MAX_SSE open event streams; the limit handler only covers the handshake, since
+        // the stream outlives it
+        int maxSse = (int) envLong("P2PLINK_MAX_SSE", 4096);
+        server.createContext("/events", new ConcurrencyLimitHandler(new SseHandler(sseHub, maxSse), maxSse, maxWait));
+        server.createContext("/", new ConcurrencyLimitHandler(new CorsHandler(),
+                (int) envLong("P2PLINK_MAX_CONTROL", 64), maxWait));
+        server.createContext("/api/bandwidth", new BandwidthHandler(bandwidth, System.getenv("P2PLINK_ADMIN_TOKEN")));
         server.createContext("/api/health", exchange -> {
             String response = "OK";
             exchange.sendResponseHeaders(200, response.length());
             exchange.getResponseBody().write(response.getBytes());
             exchange.close();
         });
+        Metrics.gauge("registry.size", registry::size);
+        Metrics.gauge("sse.subscribers", sseHub::subscriberCount);
+        Metrics.gauge("upload.active_sessions", uploadService::activeSessions);
+        Metrics.gauge("bandwidth.active_transfers", bandwidth::activeTransfers);
+        Metrics.gauge("hotcache.bytes", hotCache::usedBytes);
+        Metrics.gauge("hotcache.entries", hotCache::size);
+        server.createContext("/api/metrics", exchange -> {
+            byte[] response = Metrics.toJson().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
         scheduled.scheduleAtFixedRate(() -> {
             int removed = registry.cleanupExpired();
             if (removed > 0) {
                 System.out.println("Cleanup removed " + removed + " expired files");
             }
+        }, FileRegistry.EXPIRY_TICK_MILLIS, FileRegistry.EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        long compactBytes = envLong("P2PLINK_REGISTRY_COMPACT_BYTES", 16 * 1024 * 1024);
+        scheduled.scheduleAtFixedRate(() -> {
+            try {
+                registry.compactIfNeeded(compactBytes);
+            } catch (IOException e) {
+                System.err.println("Registry compaction failed: " + e.getMessage());
+            }
         }, 1, 1, TimeUnit.MINUTES);
+        scheduled.scheduleAtFixedRate(() -> {
+            int removed = uploadService.cleanupStaleSessions(TimeUnit.HOURS.toMillis(24));
+            if (removed > 0) {
+                System.out.println("Cleanup removed " + removed + " abandoned upload sessions");
+            }
+        }, 1, 1, TimeUnit.HOURS);
 
         server.setExecutor(executorService);
     }
 
+    // P2PLINK_HTTP_ENGINE=nio (default) serves the API from NioHttpServer; =jdk falls back to the JDK HttpServer
+    private static HttpServer createServer(InetSocketAddress address) throws IOException {
+        String engine = System.getenv().getOrDefault("P2PLINK_HTTP_ENGINE", "nio");
+        if ("jdk".equalsIgnoreCase(engine)) {
+            return HttpServer.create(address, 0);
+        }
+        NioHttpServer server = new NioHttpServer(
+                (int) envLong("P2PLINK_HTTP_BUFFER", 16 * 1024),
+                (int) envLong("P2PLINK_HTTP_MAX_HEAD", 64 * 1024),
+                envLong("P2PLINK_HTTP_MAX_PENDING", 1024 * 1024),
+                envLong("P2PLINK_HTTP_KEEPALIVE_MS", 60_000));
+        server.setReadTimeouts(envLong("P2PLINK_HTTP_HEAD_TIMEOUT_MS", 10_000),
+                envLong("P2PLINK_HTTP_READ_IDLE_MS", 30_000));
+        server.bind(address, 0);
+        return server;
+    }
+
+    // P2PLINK_EXECUTOR=virtual (default) runs each request on its own virtual thread, so requests
+    // blocked on socket I/O do not hold a pool slot; P2PLINK_EXECUTOR=fixed keeps a bounded platform pool
+    private static ExecutorService createExecutor() {
+        String mode = System.getenv().getOrDefault("P2PLINK_EXECUTOR", "virtual");
+        if ("fixed".equalsIgnoreCase(mode)) {
+            return Executors.newFixedThreadPool((int) envLong("P2PLINK_THREADS", 16));
+        }
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    private static Set<String> envList(String name) {
+        Set<String> values = new HashSet<>();
+        for (String value : System.getenv().getOrDefault(name, "").split(",")) {
+            if (!value.isBlank()) values.add(value.trim());
+        }
+        return values;
+    }
+
+    private static SseHub.SlowConsumerPolicy ssePolicy() {
+        String value = System.getenv().getOrDefault("P2PLINK_SSE_POLICY", "disconnect");
+        try {
+            return SseHub.SlowConsumerPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring invalid P2PLINK_SSE_POLICY=" + value);
+            return SseHub.SlowConsumerPolicy.DISCONNECT;
+        }
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid " + name + "=" + value);
+            return defaultValue;
+        }
+    }
+
     private void initUploadDir() {
         File uploadDirFile = new File(uploadDir);
         if (!uploadDirFile.exists()) {
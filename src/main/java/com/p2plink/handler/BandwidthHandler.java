@@ -0,0 +1,78 @@
+package com.p2plink.handler;
+
+import com.p2plink.utils.BandwidthScheduler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * GET /api/bandwidth reports the egress limits and active transfers. POST with any of
+ * {@code ?global=&share=&client=} (bytes per second, 0 = unlimited) changes them on the fly; it needs
+ * {@code X-Admin-Token} matching the token the server was started with, and is disabled without one.
+ */
+public class BandwidthHandler implements HttpHandler {
+
+    private final BandwidthScheduler scheduler;
+    private final String adminToken;
+
+    public BandwidthHandler(BandwidthScheduler scheduler, String adminToken) {
+        this.scheduler = scheduler;
+        this.adminToken = adminToken;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if ("POST".equalsIgnoreCase(method)) {
+            String token = exchange.getRequestHeaders().getFirst("X-Admin-Token");
+            if (adminToken == null || adminToken.isEmpty() || token == null
+                    || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), adminToken.getBytes(StandardCharsets.UTF_8))) {
+                send(exchange, 403, "{\"error\":\"forbidden\"}");
+                return;
+            }
+            long global = scheduler.getGlobalLimit();
+            long share = scheduler.getPerShareLimit();
+            long client = scheduler.getPerClientLimit();
+            String query = exchange.getRequestURI().getRawQuery();
+            try {
+                if (query != null) {
+                    for (String param : query.split("&")) {
+                        int eq = param.indexOf('=');
+                        if (eq < 0) continue;
+                        long value = Long.parseLong(param.substring(eq + 1));
+                        switch (param.substring(0, eq)) {
+                            case "global" -> global = value;
+                            case "share" -> share = value;
+                            case "client" -> client = value;
+                            default -> { }
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                send(exchange, 400, "{\"error\":\"limits must be integers (bytes per second)\"}");
+                return;
+            }
+            scheduler.setLimits(global, share, client);
+        } else if (!"GET".equalsIgnoreCase(method)) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        send(exchange, 200, "{\"global\":" + scheduler.getGlobalLimit()
+                + ",\"perShare\":" + scheduler.getPerShareLimit()
+                + ",\"perClient\":" + scheduler.getPerClientLimit()
+                + ",\"activeTransfers\":" + scheduler.activeTransfers() + "}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
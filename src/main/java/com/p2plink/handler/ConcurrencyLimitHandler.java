@@ -0,0 +1,57 @@
+package com.p2plink.handler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps how many requests of one class (uploads, downloads, control) run at once, so a flood of
+ * slow transfers cannot take every thread the other endpoints need. Requests that cannot get a
+ * permit within the wait time are rejected with 503.
+ */
+public class ConcurrencyLimitHandler implements HttpHandler {
+
+    private final HttpHandler delegate;
+    private final Semaphore permits;
+    private final long maxWaitMillis;
+
+    public ConcurrencyLimitHandler(HttpHandler delegate, int maxConcurrent, long maxWaitMillis) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            String response = "Server busy, retry later";
+            exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            exchange.sendResponseHeaders(503, response.getBytes().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+            return;
+        }
+        try {
+            delegate.handle(exchange);
+        } finally {
+            permits.release();
+        }
+    }
+
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+}
@@ -1,44 +1,131 @@
 package com.p2plink.handler;
+
+import com.p2plink.services.FileSharer;
+import com.p2plink.utils.Metrics;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
+/**
+ * Serves one connection of the shared {@link FileSharer} listener. The client sends
+ * {@code <code>[ <offset>]\n}; the reply is a header block
+ *
+ * <pre>
+ * Filename: name
+ * Filesize: total bytes
+ * Offset: first byte sent
+ * Checksum: sha-256 hex of the whole file, or "trailer"
+ * </pre>
+ *
+ * followed by bytes {@code [offset, Filesize)} sent with {@code sendfile}. The checksum is computed in
+ * the background when the file is offered; if it is not ready yet the header says {@code trailer} and
+ * {@code Checksum: <hex>\r\n\r\n} follows the file bytes instead ({@code unavailable} if the file could
+ * not be read). A receiver that lost its connection asks again from the number of bytes it kept and checks
+ * the assembled file against the checksum.
+ */
 public class FileSenderHandler implements Runnable {
 
-    private final Socket clientSocket;
-    private final String filePath;
-    private final String originalName;
+    private static final int MAX_REQUEST_LINE = 64;
+    private static final int REQUEST_TIMEOUT_MS = 10_000;
 
-    public FileSenderHandler(Socket clientSocket, String filePath, String originalName) {
-        this.clientSocket = clientSocket;
-        this.filePath = filePath;
-        this.originalName = originalName;
+    private final SocketChannel channel;
+    private final FileSharer sharer;
+
+    public FileSenderHandler(SocketChannel channel, FileSharer sharer) {
+        this.channel = channel;
+        this.sharer = sharer;
     }
 
     @Override
     public void run() {
-        try (FileInputStream fileInputStream = new FileInputStream(filePath);
-             OutputStream out = clientSocket.getOutputStream()) {
+        try (SocketChannel client = channel) {
+            Socket socket = client.socket();
+            // A client that never names a share must not hold a connection slot forever
+            socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+            String line = readLine(socket.getInputStream());
+            int code = -1;
+            long offset = 0;
+            if (line != null) {
+                String[] parts = line.trim().split("\\s+");
+                try {
+                    code = Integer.parseInt(parts[0]);
+                    if (parts.length > 1) offset = Long.parseLong(parts[1]);
+                } catch (NumberFormatException e) {
+                    code = -1;
+                }
+            }
+            String filePath = code < 0 || offset < 0 ? null : sharer.getFilePath(code);
+            if (filePath == null) {
+                writeFully(client, "Error: share not found\r\n\r\n");
+                return;
+            }
+            String originalName = sharer.getOriginalName(code);
 
-            long fileSize = new File(filePath).length();
-            String header = String.format("Filename: %s\r\nFilesize: %d\r\n\r\n", originalName, fileSize);
+            try (FileChannel file = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+                long fileSize = file.size();
+                if (offset > fileSize) {
+                    writeFully(client, "Error: offset beyond end of file\r\nFilesize: " + fileSize + "\r\n\r\n");
+                    return;
+                }
+                String checksum = sharer.getChecksumIfReady(code);
+                String header = String.format("Filename: %s\r\nFilesize: %d\r\nOffset: %d\r\nChecksum: %s\r\n\r\n",
+                        originalName, fileSize, offset, checksum != null ? checksum : "trailer");
+                writeFully(client, header);
+                send(file, offset, fileSize, client);
+                if (checksum == null) {
+                    // Hashing runs alongside the send, so this rarely waits long
+                    String late = sharer.awaitChecksum(code);
+                    writeFully(client, "Checksum: " + (late != null ? late : "unavailable") + "\r\n\r\n");
+                }
+                Metrics.SHARER_SENDS.increment();
+                Metrics.SHARER_BYTES.add(fileSize - offset);
+            }
 
-            out.write(header.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Error sending file: " + e.getMessage());
+        }
+    }
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+    private static void send(FileChannel file, long position, long end, SocketChannel client) throws IOException {
+        ByteBuffer stallBuffer = null;
+        while (position < end) {
+            long n = file.transferTo(position, end - position, client);
+            if (n > 0) {
+                position += n;
+                continue;
             }
+            // On a virtual thread the socket is non-blocking underneath, so sendfile returns 0 when the send
+            // buffer is full; push one block through the ordinary write, which parks until writable
+            if (stallBuffer == null) stallBuffer = ByteBuffer.allocate(64 * 1024);
+            stallBuffer.clear().limit((int) Math.min(stallBuffer.capacity(), end - position));
+            int r = file.read(stallBuffer, position);
+            if (r <= 0) throw new EOFException("File shrank during transfer");
+            stallBuffer.flip();
+            while (stallBuffer.hasRemaining()) client.write(stallBuffer);
+            position += r;
+        }
+    }
 
-            System.out.printf("File '%s' sent to %s%n", originalName, clientSocket.getInetAddress());
+    private static void writeFully(SocketChannel client, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) client.write(buffer);
+    }
 
-        } catch (IOException e) {
-            System.err.println("Error sending file: " + e.getMessage());
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException ignored) {}
+    // The request line, without its terminator; null if the client closed or sent more than a request's worth
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') return sb.toString();
+            if (b != '\r') sb.append((char) b);
+            if (sb.length() > MAX_REQUEST_LINE) return null;
         }
+        return sb.isEmpty() ? null : sb.toString();
     }
 }
@@ -6,14 +6,22 @@ import com.sun.net.httpserver.HttpHandler;
 
 import com.p2plink.services.SseHub;
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class SseHandler implements HttpHandler {
 
 
     private final SseHub hub;
+    private final int maxSubscribers;
 
     public SseHandler(SseHub hub) {
+        this(hub, Integer.MAX_VALUE);
+    }
+
+    /** Refuses new streams with 503 while {@code maxSubscribers} are open. */
+    public SseHandler(SseHub hub, int maxSubscribers) {
         this.hub = hub;
+        this.maxSubscribers = maxSubscribers;
     }
 
 
@@ -33,14 +41,42 @@ public class SseHandler implements HttpHandler {
             return;
         }
 
+        if (hub.subscriberCount() >= maxSubscribers) {
+            String response = "Too many event streams, retry later";
+            h.add("Retry-After", "5");
+            exchange.sendResponseHeaders(503, response.getBytes().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+            return;
+        }
+
         String path = exchange.getRequestURI().getPath();
         String fileId = path.substring(path.lastIndexOf('/') + 1);
         Headers rh = exchange.getResponseHeaders();
         rh.add("Content-Type", "text/event-stream");
         rh.add("Cache-Control", "no-cache");
         rh.add("Connection", "keep-alive");
+        rh.add("X-Accel-Buffering", "no");
         exchange.sendResponseHeaders(200, 0);
-        hub.subscribe(fileId, exchange);
+        hub.subscribe(fileId, exchange, lastEventId(exchange));
 
     }
+
+    // EventSource sends Last-Event-ID on reconnect; proxies that strip it can pass ?lastEventId= instead
+    private static long lastEventId(HttpExchange exchange) {
+        String value = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        String query = exchange.getRequestURI().getRawQuery();
+        if (value == null && query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith("lastEventId=")) value = param.substring("lastEventId=".length());
+            }
+        }
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 }
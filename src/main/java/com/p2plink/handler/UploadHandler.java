@@ -3,7 +3,6 @@ import com.p2plink.services.UploadService;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.*;
-import java.nio.file.*;
 import java.util.List;
 import java.util.Map;
 
@@ -21,6 +20,11 @@ public class UploadHandler implements HttpHandler {
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/upload/session")) {
+            handleSession(exchange, path);
+            return;
+        }
         if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
             exchange.sendResponseHeaders(405, -1);
             return;
@@ -28,33 +32,150 @@ public class UploadHandler implements HttpHandler {
 
 
         Map<String, List<String>> headers = exchange.getRequestHeaders();
-        String fileName = getHeader(headers, "X-File-Name");
+        String uploadId = getHeader(headers, "X-Upload-Id");
+        String contentType = getHeader(headers, "Content-Type");
+        if (uploadId == null && contentType != null && contentType.toLowerCase().startsWith("multipart/form-data")) {
+            handleMultipart(exchange, contentType);
+            return;
+        }
         String chunkIndexStr = getHeader(headers, "X-Chunk-Index");
-        String totalChunksStr = getHeader(headers, "X-Total-Chunks");
-        String totalSizeStr = getHeader(headers, "X-File-Size");
+        UploadService.UploadSession session;
+        if (uploadId != null) {
+            session = uploadService.getSession(uploadId);
+            if (session == null) {
+                sendText(exchange, 404, "Unknown upload session " + uploadId);
+                return;
+            }
+            if (chunkIndexStr == null) {
+                sendText(exchange, 400, "Missing required header X-Chunk-Index");
+                return;
+            }
+        } else {
+            String fileName = getHeader(headers, "X-File-Name");
+            String totalChunksStr = getHeader(headers, "X-Total-Chunks");
+            String totalSizeStr = getHeader(headers, "X-File-Size");
+            if (fileName == null || chunkIndexStr == null || totalChunksStr == null || totalSizeStr == null) {
+                sendText(exchange, 400, "Missing required headers (X-File-Name, X-Chunk-Index, X-Total-Chunks, X-File-Size)");
+                return;
+            }
+            String chunkSizeStr = getHeader(headers, "X-Chunk-Size");
+            try {
+                session = uploadService.legacySession(fileName, Long.parseLong(totalSizeStr), Integer.parseInt(totalChunksStr),
+                        chunkSizeStr != null ? Long.parseLong(chunkSizeStr) : 0);
+            } catch (UploadService.UploadTooLargeException e) {
+                sendText(exchange, 413, e.getMessage());
+                return;
+            }
+        }
 
+        int chunkIndex = Integer.parseInt(chunkIndexStr);
+        long offset = chunkOffset(headers, session, chunkIndex);
+        if (offset < 0) {
+            sendText(exchange, 400, "Missing X-Chunk-Size or Content-Length header");
+            return;
+        }
+        // Save the chunk at its own offset; whichever chunk completes the file finalizes it
+        boolean complete;
+        try {
+            complete = uploadService.saveChunk(session, chunkIndex, offset, exchange.getRequestBody());
+        } catch (IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage());
+            return;
+        }
+        String code="";
+        if (complete) {
+            code = uploadService.finalizeUpload(session);
+        }
+        byte[] resp = ("{\"fileId\":\"" + code + "\",\"uploadId\":\"" + session.getSessionId() + "\"}").getBytes();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, resp.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(resp);
+        }
+    }
 
-        if (fileName == null || chunkIndexStr == null || totalChunksStr == null || totalSizeStr == null) {
-            String msg = "Missing required headers (X-File-Name, X-Chunk-Index, X-Total-Chunks, X-File-Size)";
-            byte[] resp = msg.getBytes();
-            exchange.sendResponseHeaders(400, resp.length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(resp);
+    // Plain HTML form upload: the whole file in one multipart/form-data request
+    private void handleMultipart(HttpExchange exchange, String contentType) throws IOException {
+        String boundary = null;
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "boundary=", 0, 9)) {
+                boundary = param.substring(9);
+                if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
             }
+        }
+        if (boundary == null || boundary.isEmpty()) {
+            sendText(exchange, 400, "Missing multipart boundary");
+            return;
+        }
+        String code;
+        try {
+            code = uploadService.saveMultipart(exchange.getRequestBody(), boundary);
+        } catch (UploadService.UploadTooLargeException e) {
+            sendText(exchange, 413, e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage());
             return;
         }
+        byte[] resp = ("{\"fileId\":\"" + code + "\"}").getBytes();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, resp.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(resp);
+        }
+    }
 
+    // POST /upload/session creates a session, GET /upload/session/{id} reports what is still missing
+    private void handleSession(HttpExchange exchange, String path) throws IOException {
+        Map<String, List<String>> headers = exchange.getRequestHeaders();
+        UploadService.UploadSession session;
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            String fileName = getHeader(headers, "X-File-Name");
+            String totalSizeStr = getHeader(headers, "X-File-Size");
+            String chunkSizeStr = getHeader(headers, "X-Chunk-Size");
+            if (fileName == null || totalSizeStr == null || chunkSizeStr == null) {
+                sendText(exchange, 400, "Missing required headers (X-File-Name, X-File-Size, X-Chunk-Size)");
+                return;
+            }
+            long totalSize = Long.parseLong(totalSizeStr);
+            long chunkSize = Long.parseLong(chunkSizeStr);
+            if (chunkSize <= 0) {
+                sendText(exchange, 400, "X-Chunk-Size must be positive");
+                return;
+            }
+            int totalChunks = (int) Math.max(1, (totalSize + chunkSize - 1) / chunkSize);
+            try {
+                session = uploadService.createSession(fileName, totalSize, totalChunks, chunkSize);
+            } catch (UploadService.UploadTooLargeException e) {
+                sendText(exchange, 413, e.getMessage());
+                return;
+            }
+        } else if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            String sessionId = path.substring(path.lastIndexOf('/') + 1);
+            session = uploadService.getSession(sessionId);
+            if (session == null) {
+                sendText(exchange, 404, "Unknown upload session " + sessionId);
+                return;
+            }
+        } else {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
 
-        int chunkIndex = Integer.parseInt(chunkIndexStr);
-        int totalChunks = Integer.parseInt(totalChunksStr);
-        long totalSize = Long.parseLong(totalSizeStr);
-        // Save the chunk
-        uploadService.saveChunk(fileName, chunkIndex, totalChunks, totalSize, exchange.getRequestBody());
-        String code="";
-        if (chunkIndex == totalChunks - 1) {
-            code = uploadService.finalizeUpload(fileName);
+        StringBuilder missing = new StringBuilder();
+        for (int[] range : session.getMissingChunks()) {
+            if (missing.length() > 0) missing.append(',');
+            missing.append('[').append(range[0]).append(',').append(range[1]).append(']');
         }
-        byte[] resp = ("{\"fileId\":\"" + code + "\"}").getBytes();
+        byte[] resp = ("{\"uploadId\":\"" + session.getSessionId() + "\""
+                + ",\"fileSize\":" + session.getTotalSize()
+                + ",\"chunkSize\":" + session.getChunkSize()
+                + ",\"totalChunks\":" + session.getTotalChunks()
+                + ",\"uploaded\":" + session.getUploadedBytes()
+                + ",\"missingChunks\":[" + missing + "]}").getBytes();
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(200, resp.length);
         try (OutputStream os = exchange.getResponseBody()) {
@@ -63,6 +184,30 @@ public class UploadHandler implements HttpHandler {
     }
 
 
+    private long chunkOffset(Map<String, List<String>> headers, UploadService.UploadSession session, int chunkIndex) {
+        if (session.getChunkSize() > 0) {
+            return chunkIndex * session.getChunkSize();
+        }
+        if (chunkIndex == 0) {
+            return 0;
+        }
+        // Older clients only send fixed-size chunks, so the body length of any non-final chunk is the chunk size
+        String lengthStr = getHeader(headers, "Content-Length");
+        if (lengthStr == null) {
+            return -1;
+        }
+        long length = Long.parseLong(lengthStr);
+        return chunkIndex == session.getTotalChunks() - 1 ? session.getTotalSize() - length : chunkIndex * length;
+    }
+
+    private void sendText(HttpExchange exchange, int status, String msg) throws IOException {
+        byte[] resp = msg.getBytes();
+        exchange.sendResponseHeaders(status, resp.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(resp);
+        }
+    }
+
     private String getHeader(Map<String, List<String>> headers, String key) {
         for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
             if (entry.getKey().equalsIgnoreCase(key)) {
@@ -2,15 +2,99 @@ package com.p2plink.parser;
 
 import com.p2plink.utils.ParseResult;
 
-import static com.p2plink.utils.ParseResult.findSequence;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Push-style multipart/form-data parser. Body bytes are handed to {@link #feed} as they arrive and each
+ * part's content is written straight to the channel its {@link PartHandler} returns, so memory use is
+ * one fixed buffer however large the upload. Delimiters are found with a Horspool skip table; the last
+ * few bytes of every buffer are held back in case a delimiter straddles two reads.
+ */
 public class Multiparser {
 
+    /** Headers of one part, with the Content-Disposition parameters picked out. */
+    public static final class Part {
+        private final Map<String, String> headers;
+        private final String name;
+        private final String fileName;
+
+        Part(Map<String, String> headers, String name, String fileName) {
+            this.headers = headers;
+            this.name = name;
+            this.fileName = fileName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** The sanitized filename, or null for a plain form field. */
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getContentType() {
+            return headers.getOrDefault("content-type", "application/octet-stream");
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+    }
+
+    public interface PartHandler {
+        /** Where the content of {@code part} goes, or null to skip it. */
+        WritableByteChannel open(Part part) throws IOException;
+
+        /** Called once the closing delimiter of {@code part} has been seen. */
+        default void close(Part part, long size) throws IOException {
+        }
+    }
+
+    private enum State { PREAMBLE, AFTER_DELIMITER, HEADERS, BODY, DONE }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
     private final byte[] data;
     private final String boundary;
+    private final PartHandler handler;
+    private final byte[] delimiter;
+    private final int[] skip = new int[256];
+    private byte[] buf;
+    private int start, end;
+    private State state = State.PREAMBLE;
+    private Part part;
+    private WritableByteChannel out;
+    private long partSize;
+
     public Multiparser(byte[] data, String boundary) {
-      this.data = data;
-      this.boundary = boundary;
+        this(data, boundary, null);
+    }
+
+    public Multiparser(String boundary, PartHandler handler) {
+        this(null, boundary, handler);
+    }
+
+    private Multiparser(byte[] data, String boundary, PartHandler handler) {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 200) {
+            throw new IllegalArgumentException("Invalid multipart boundary");
+        }
+        this.data = data;
+        this.boundary = boundary;
+        this.handler = handler;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        int last = delimiter.length - 1;
+        Arrays.fill(skip, delimiter.length);
+        for (int k = 0; k < last; k++) skip[delimiter[k] & 0xff] = last - k;
     }
 
     public byte[] getData() {
@@ -20,46 +104,61 @@ public class Multiparser {
       return boundary;
     }
 
-    public ParseResult parse(){
-        try {
-            String dataAsString = new String(this.data, "UTF-8");
-            String fileNameMarker="filename=\"";
-            int fileNameStart = dataAsString.indexOf(fileNameMarker);
-            if (fileNameStart == -1){
-                return null;
-            }
-            int fileNameEnd=dataAsString.indexOf("\"",fileNameStart+fileNameMarker.length());
-            String fileName = dataAsString.substring(fileNameStart + fileNameMarker.length(), fileNameEnd);
-            fileName = fileName.replaceAll("[\\\\/:*?\"<>|]", "_");
-
-            String  contentTypeMarker="Content-Type: ";
-            String contentType="application/octet-stream";
-            int contentTypeStart = dataAsString.indexOf(contentTypeMarker,fileNameEnd);
-            if (contentTypeStart != -1){
-                contentTypeStart=contentTypeStart + contentTypeMarker.length();
-                int contentTypeEnd=dataAsString.indexOf("\r\n",contentTypeStart);
-                contentType=dataAsString.substring(contentTypeStart,contentTypeEnd);
+    public boolean isDone() {
+        return state == State.DONE;
+    }
 
+    /** Consumes all of {@code src}. Anything after the closing delimiter is ignored. */
+    public void feed(ByteBuffer src) throws IOException {
+        if (buf == null) {
+            buf = new byte[BUFFER_SIZE + delimiter.length];
+            // A virtual CRLF lets the first delimiter match even when the body starts with it
+            buf[0] = '\r';
+            buf[1] = '\n';
+            end = 2;
+        }
+        while (src.hasRemaining() && state != State.DONE) {
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
             }
-            String headerEndMarker="\r\n\r\n";
-            int headerEnd = dataAsString.indexOf(headerEndMarker);
-            if (headerEnd == -1){
-                return null;
-            }
-            int contentStart=headerEnd + headerEndMarker.length();
-            byte[] boundaryBytes = ("\r\n--"+boundary+"--").getBytes();
-            int contentEnd=findSequence(data,boundaryBytes,contentStart);
-            if (contentEnd == -1){
-                boundaryBytes = ("\r\n--"+boundary).getBytes();
-                contentEnd=findSequence(data,boundaryBytes,contentStart);
-            }
-            if (contentEnd == -1 || contentEnd<contentStart){
-                return null;
-            }
-            byte[] fileContent=new byte[contentEnd-contentStart];
-            System.arraycopy(data,contentStart,fileContent,0,fileContent.length);
-            return new ParseResult(fileName,fileContent,contentType);
+            int n = Math.min(src.remaining(), buf.length - end);
+            src.get(buf, end, n);
+            end += n;
+            process();
+        }
+        src.position(src.limit());
+    }
+
+    /** Fails unless the body was complete; a missing trailing "--" after the last delimiter is tolerated. */
+    public void finish() throws IOException {
+        if (state == State.AFTER_DELIMITER && start == end) state = State.DONE;
+        if (state != State.DONE) throw new IOException("Multipart body ended before the closing boundary");
+    }
 
+    /** Parses the in-memory body given to the constructor and returns its first file part. */
+    public ParseResult parse() {
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            Part[] file = new Part[1];
+            boolean[] closed = new boolean[1];
+            Multiparser parser = new Multiparser(boundary, new PartHandler() {
+                @Override
+                public WritableByteChannel open(Part p) {
+                    if (file[0] != null || p.getFileName() == null) return null;
+                    file[0] = p;
+                    return Channels.newChannel(content);
+                }
+
+                @Override
+                public void close(Part p, long size) {
+                    if (p == file[0]) closed[0] = true;
+                }
+            });
+            parser.feed(ByteBuffer.wrap(data));
+            if (!closed[0]) return null;
+            return new ParseResult(file[0].getFileName(), content.toByteArray(), file[0].getContentType());
         }
         catch (Exception e){
             System.err.println("Multiparser Error: "+e.getMessage());
@@ -67,5 +166,143 @@ public class Multiparser {
         }
     }
 
+    private void process() throws IOException {
+        while (true) {
+            switch (state) {
+                case PREAMBLE -> {
+                    int i = indexOf(start, end);
+                    if (i < 0) {
+                        start = Math.max(start, end - (delimiter.length - 1));
+                        return;
+                    }
+                    start = i + delimiter.length;
+                    state = State.AFTER_DELIMITER;
+                }
+                case AFTER_DELIMITER -> {
+                    if (end - start < 2) return;
+                    if (buf[start] == '-' && buf[start + 1] == '-') {
+                        state = State.DONE;
+                        start = end;
+                        return;
+                    }
+                    // Transport padding (spaces, tabs) may sit between the delimiter and its CRLF
+                    int i = start;
+                    while (i < end && (buf[i] == ' ' || buf[i] == '\t')) i++;
+                    if (end - i < 2) return;
+                    if (buf[i] != '\r' || buf[i + 1] != '\n') throw new IOException("Malformed multipart delimiter line");
+                    start = i + 2;
+                    state = State.HEADERS;
+                }
+                case HEADERS -> {
+                    int i = headersEnd();
+                    if (i < 0) {
+                        if (end - start > MAX_HEADER_BYTES) throw new IOException("Multipart part headers too large");
+                        return;
+                    }
+                    part = parseHeaders(start, i);
+                    start = i + 2;
+                    out = handler.open(part);
+                    partSize = 0;
+                    state = State.BODY;
+                }
+                case BODY -> {
+                    int i = indexOf(start, end);
+                    if (i < 0) {
+                        int safe = end - (delimiter.length - 1);
+                        if (safe > start) {
+                            emit(start, safe);
+                            start = safe;
+                        }
+                        return;
+                    }
+                    emit(start, i);
+                    Part done = part;
+                    part = null;
+                    out = null;
+                    start = i + delimiter.length;
+                    state = State.AFTER_DELIMITER;
+                    handler.close(done, partSize);
+                }
+                case DONE -> {
+                    start = end;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void emit(int from, int to) throws IOException {
+        if (out != null) {
+            ByteBuffer b = ByteBuffer.wrap(buf, from, to - from);
+            while (b.hasRemaining()) out.write(b);
+        }
+        partSize += to - from;
+    }
+
+    // Horspool over buf[from, to); on a mismatch the window jumps by the skip of its last byte
+    private int indexOf(int from, int to) {
+        int last = delimiter.length - 1;
+        int i = from;
+        while (i <= to - delimiter.length) {
+            int j = last;
+            while (buf[i + j] == delimiter[j]) {
+                if (j == 0) return i;
+                j--;
+            }
+            i += skip[buf[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    // Offset of the blank line's CRLF that ends the header block starting at start, or -1
+    private int headersEnd() {
+        if (end - start >= 2 && buf[start] == '\r' && buf[start + 1] == '\n') return start;
+        for (int i = start; i + 3 < end; i++) {
+            if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') return i + 2;
+        }
+        return -1;
+    }
+
+    private Part parseHeaders(int from, int to) {
+        Map<String, String> headers = new HashMap<>();
+        for (String line : new String(buf, from, to - from, StandardCharsets.UTF_8).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+        Map<String, String> params = dispositionParams(headers.get("content-disposition"));
+        String fileName = params.get("filename");
+        if (fileName != null) fileName = fileName.replaceAll("[\\\\/:*?\"<>|]", "_");
+        return new Part(headers, params.get("name"), fileName);
+    }
 
+    // form-data; name="field"; filename="a;b.txt" -> {name=field, filename=a;b.txt}
+    private static Map<String, String> dispositionParams(String value) {
+        Map<String, String> params = new HashMap<>();
+        if (value == null) return params;
+        int i = value.indexOf(';');
+        while (i >= 0 && i < value.length()) {
+            int eq = value.indexOf('=', i + 1);
+            if (eq < 0) break;
+            String key = value.substring(i + 1, eq).trim().toLowerCase();
+            int j = eq + 1;
+            while (j < value.length() && value.charAt(j) == ' ') j++;
+            StringBuilder v = new StringBuilder();
+            if (j < value.length() && value.charAt(j) == '"') {
+                j++;
+                while (j < value.length() && value.charAt(j) != '"') {
+                    if (value.charAt(j) == '\\' && j + 1 < value.length()) j++;
+                    v.append(value.charAt(j++));
+                }
+                j = value.indexOf(';', j);
+            } else {
+                int semi = value.indexOf(';', j);
+                v.append(value.substring(j, semi < 0 ? value.length() : semi).trim());
+                j = semi;
+            }
+            params.put(key, v.toString());
+            i = j;
+        }
+        return params;
+    }
 }
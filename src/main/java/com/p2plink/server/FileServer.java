@@ -1,104 +1,470 @@
 package com.p2plink.server;
 import com.p2plink.services.FileRegistry;
+import com.p2plink.utils.BandwidthScheduler;
+import com.p2plink.utils.Metrics;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * Raw file port. One acceptor thread hands new connections round-robin to a fixed set of reactors,
+ * each with its own selector. A reactor never blocks on a client: file sends keep their position in
+ * the connection and continue on OP_WRITE, so a slow reader only occupies its own socket buffer.
+ * A send held back by the {@link BandwidthScheduler} drops OP_WRITE and is resumed by the reactor's
+ * select timeout once its reservation is due.
+ *
+ * Two protocols share the port, told apart by the first bytes:
+ * <ul>
+ *   <li>v1: {@code GET <code>\n}, answered with the raw file bytes, then the connection closes.</li>
+ *   <li>v2: the client opens with {@code P2L2}, which the server echoes, then pipelines any number of
+ *   big-endian request frames {@code [u8 op=1][u32 id][i64 offset][i64 length, -1 = to end][u16 len][code]}.
+ *   Each is answered in order by {@code [u8 status][u32 id][i64 fileSize][i64 offset][i64 length][u16 len][name]}
+ *   followed by exactly {@code length} file bytes. Status is 0 OK, 1 not found, 2 offset out of range,
+ *   3 forbidden. The server closes once the client half-closes and every queued reply is sent.</li>
+ * </ul>
+ * Neither protocol can present a passphrase, so passphrase-protected shares are refused; they are only
+ * served over HTTP. A one-time share is consumed by the first request for it, as over HTTP.
+ */
 public class FileServer implements Runnable {
 
+    // Most file bytes one connection may send per readiness event, so a fast reader cannot monopolise its reactor
+    private static final long TRANSFER_WINDOW = 1024 * 1024;
+
+    private static final byte[] V2_MAGIC = {'P', '2', 'L', '2'};
+    private static final byte V2_OP_GET = 1;
+    private static final byte V2_OK = 0, V2_NOT_FOUND = 1, V2_BAD_RANGE = 2, V2_FORBIDDEN = 3;
+    private static final int V2_REQUEST_FIXED = 1 + 4 + 8 + 8 + 2;
+    private static final int V2_RESPONSE_FIXED = 1 + 4 + 8 + 8 + 8 + 2;
+    private static final int V2_BUFFER_SIZE = 8 * 1024;
+    private static final int V2_MAX_QUEUED = 256;
+
     private final int port;
     private final FileRegistry registry;
+    private final int reactorCount;
+    private final BandwidthScheduler scheduler;
 
     public FileServer(int port, FileRegistry registry) {
+        this(port, registry, Runtime.getRuntime().availableProcessors());
+    }
+
+    public FileServer(int port, FileRegistry registry, int reactorCount) {
+        this(port, registry, reactorCount, new BandwidthScheduler(0, 0, 0));
+    }
+
+    public FileServer(int port, FileRegistry registry, int reactorCount, BandwidthScheduler scheduler) {
         this.port = port;
         this.registry = registry;
+        this.reactorCount = Math.max(1, reactorCount);
+        this.scheduler = scheduler;
     }
 
     @Override
     public void run() {
-        try (Selector selector = Selector.open();
-             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+        Reactor[] reactors = new Reactor[reactorCount];
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            for (int i = 0; i < reactorCount; i++) {
+                reactors[i] = new Reactor();
+                Thread t = new Thread(reactors[i], "file-server-reactor-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
 
             serverChannel.bind(new InetSocketAddress("0.0.0.0", port));
-            serverChannel.configureBlocking(false);
-            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-
-            System.out.println("File Server listening on port " + port);
+            System.out.println("File Server listening on port " + port + " with " + reactorCount + " reactors");
 
+            int next = 0;
             while (true) {
-                selector.select();
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> it = selectedKeys.iterator();
-
-                while (it.hasNext()) {
-                    SelectionKey key = it.next();
-                    it.remove();
-
-                    if (key.isAcceptable()) {
-                        handleAccept(serverChannel, selector);
-                    } else if (key.isReadable()) {
-                        handleRead(key);
-                    }
-                }
+                SocketChannel client = serverChannel.accept();
+                reactors[next].add(client);
+                next = (next + 1) % reactorCount;
             }
         } catch (IOException e) {
             System.err.println("File Server Error: " + e.getMessage());
+        } finally {
+            for (Reactor reactor : reactors) {
+                if (reactor != null) reactor.shutdown();
+            }
         }
     }
 
-    private void handleAccept(ServerSocketChannel serverChannel, Selector selector) throws IOException {
-        SocketChannel client = serverChannel.accept();
-        client.configureBlocking(false);
-        client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(1024));
-        System.out.println("Client connected: " + client.getRemoteAddress());
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+        // Connections waiting for their bandwidth reservation, soonest first; reactor thread only
+        private final PriorityQueue<Connection> paused = new PriorityQueue<>((a, b) -> Long.compare(a.resumeAt - b.resumeAt, 0));
+        private volatile boolean running = true;
+
+        Reactor() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void add(SocketChannel client) {
+            incoming.add(client);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try (Selector s = selector) {
+                while (running) {
+                    Connection next = paused.peek();
+                    if (next == null) {
+                        s.select();
+                    } else {
+                        long waitNanos = next.resumeAt - System.nanoTime();
+                        if (waitNanos > 0) s.select(Math.max(1, (waitNanos + 999_999) / 1_000_000));
+                        else s.selectNow();
+                    }
+                    registerIncoming();
+                    resumePaused();
+
+                    Set<SelectionKey> selectedKeys = s.selectedKeys();
+                    Iterator<SelectionKey> it = selectedKeys.iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                conn.handleRead();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.handleWrite();
+                            }
+                        } catch (IOException e) {
+                            conn.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("File Server reactor error: " + e.getMessage());
+            }
+        }
+
+        private void resumePaused() {
+            Connection conn;
+            while ((conn = paused.peek()) != null && conn.resumeAt - System.nanoTime() <= 0) {
+                paused.poll();
+                conn.paused = false;
+                if (!conn.key.isValid()) continue;
+                try {
+                    conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+                    conn.handleWrite();
+                } catch (IOException e) {
+                    conn.close();
+                }
+            }
+        }
+
+        private void registerIncoming() {
+            SocketChannel client;
+            while ((client = incoming.poll()) != null) {
+                try {
+                    client.configureBlocking(false);
+                    SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, client, key));
+                    Metrics.FILESERVER_CONNECTIONS.increment();
+                } catch (IOException e) {
+                    try { client.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
     }
 
-    private void handleRead(SelectionKey key) throws IOException {
-        SocketChannel client = (SocketChannel) key.channel();
-        ByteBuffer buffer = (ByteBuffer) key.attachment();
+    /**
+     * Per-connection state: the request bytes read so far, then the reply header and the file region
+     * left to send. A v2 connection also queues the requests that are pipelined behind the current one.
+     */
+    private final class Connection {
+        private final Reactor reactor;
+        private final SocketChannel client;
+        private final SelectionKey key;
+        private final String clientAddress;
+        private ByteBuffer request = ByteBuffer.allocate(1024);
+        private int version; // 0 until the first bytes tell v1 from v2
+        private final ArrayDeque<V2Request> queued = new ArrayDeque<>();
+        private boolean inputClosed;
+        private ByteBuffer header;
+        private FileChannel file;
+        private long position;
+        private long end;
+        private long sendOffset;
+        private BandwidthScheduler.Transfer pace;
+        private boolean paused;
+        private long resumeAt;
+        // Set when a request is read, cleared once its first reply byte is written
+        private long requestNanos;
+        private long sendStartNanos;
 
-        int bytesRead = client.read(buffer);
-        if (bytesRead == -1) {
-            client.close();
-            return;
+        Connection(Reactor reactor, SocketChannel client, SelectionKey key) throws IOException {
+            this.reactor = reactor;
+            this.client = client;
+            this.key = key;
+            // The raw port is reached directly, never through the HTTP proxy, so the peer is the client
+            this.clientAddress = client.getRemoteAddress() instanceof InetSocketAddress a && a.getAddress() != null
+                    ? a.getAddress().getHostAddress() : null;
+        }
+
+        void handleRead() throws IOException {
+            int bytesRead = client.read(request);
+            if (bytesRead == -1) {
+                inputClosed = true;
+                if (version != 2 || (isIdle() && queued.isEmpty())) {
+                    close();
+                } else {
+                    key.interestOps(SelectionKey.OP_WRITE); // finish the queued replies, then close
+                }
+                return;
+            }
+            if (version == 0) {
+                if (request.position() < V2_MAGIC.length) return;
+                if (startsWith(request, V2_MAGIC)) {
+                    version = 2;
+                    request = ByteBuffer.allocate(V2_BUFFER_SIZE).put(request.flip().position(V2_MAGIC.length));
+                    header = ByteBuffer.wrap(V2_MAGIC); // echo the magic so clients know v2 is spoken here
+                } else {
+                    version = 1;
+                }
+            }
+            if (version == 1) {
+                readV1Request();
+            } else {
+                readV2Requests();
+            }
         }
-        String request = new String(buffer.array(), 0, buffer.position()).trim();
-        if (request.endsWith("\n")) {
-            buffer.clear();
-            String fileId = request.replace("GET ", "").trim();
+
+        private void readV1Request() throws IOException {
+            int newline = indexOf(request, (byte) '\n');
+            if (newline < 0) {
+                if (!request.hasRemaining()) close(); // no request line within the buffer
+                return;
+            }
+            String line = new String(request.array(), 0, newline, StandardCharsets.UTF_8).trim();
+            request.clear();
+            String fileId = line.replace("GET ", "").trim();
+            Metrics.FILESERVER_REQUESTS.increment();
+            requestNanos = System.nanoTime();
 
             FileRegistry.FileEntry entry = registry.getFile(fileId);
-            if (entry == null) {
-                client.write(ByteBuffer.wrap("File not found\n".getBytes()));
-                client.close();
+            if (entry == null || registry.isExpired(entry, System.currentTimeMillis())) {
+                header = ByteBuffer.wrap("File not found\n".getBytes());
+            } else if (entry.getPassHash() != null) {
+                header = ByteBuffer.wrap("Forbidden: passphrase required, use the HTTP download\n".getBytes());
+            } else {
+                File f = new File(entry.getFilePath());
+                FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+                if (claim(fileId, entry)) {
+                    file = ch;
+                    pace = scheduler.open(fileId, clientAddress, 1);
+                    position = 0;
+                    sendOffset = 0;
+                    end = file.size();
+                } else {
+                    ch.close();
+                    header = ByteBuffer.wrap("File not found\n".getBytes());
+                }
+            }
+            // Stop reading; everything from here on is driven by write readiness
+            key.interestOps(SelectionKey.OP_WRITE);
+            handleWrite();
+        }
+
+        private void readV2Requests() throws IOException {
+            request.flip();
+            while (request.remaining() >= V2_REQUEST_FIXED) {
+                int codeLen = request.getShort(request.position() + V2_REQUEST_FIXED - 2) & 0xffff;
+                if (codeLen > V2_BUFFER_SIZE - V2_REQUEST_FIXED) {
+                    close();
+                    return;
+                }
+                if (request.remaining() < V2_REQUEST_FIXED + codeLen) break;
+                byte op = request.get();
+                int id = request.getInt();
+                long offset = request.getLong();
+                long length = request.getLong();
+                request.getShort();
+                byte[] code = new byte[codeLen];
+                request.get(code);
+                if (op != V2_OP_GET) {
+                    close();
+                    return;
+                }
+                queued.add(new V2Request(id, new String(code, StandardCharsets.UTF_8), offset, length));
+            }
+            request.compact();
+            // Back-pressure: stop reading while too many requests are waiting
+            int ops = queued.size() >= V2_MAX_QUEUED ? 0 : SelectionKey.OP_READ;
+            if (!isIdle() || !queued.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+            if (isIdle() && !queued.isEmpty()) handleWrite();
+        }
+
+        void handleWrite() throws IOException {
+            if (paused) {
+                // Woken by OP_WRITE that a read re-armed; the reactor resumes us when the reservation is due
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
                 return;
             }
+            long budget = TRANSFER_WINDOW;
+            while (true) {
+                if (header != null) {
+                    client.write(header);
+                    if (requestNanos != 0 && header.position() > 0) {
+                        Metrics.FILESERVER_TTFB_US.recordMicrosSince(requestNanos);
+                        requestNanos = 0;
+                        sendStartNanos = System.nanoTime();
+                    }
+                    if (header.hasRemaining()) return;
+                    header = null;
+                }
+                if (file != null) {
+                    while (position < end) {
+                        if (budget == 0) return; // OP_WRITE stays armed; continue after the other ready keys
+                        long step = pace.tryAcquire(Math.min(budget, end - position));
+                        if (step == 0) {
+                            pause(pace.readyAt());
+                            return;
+                        }
+                        long sent = file.transferTo(position, step, client);
+                        if (sent <= 0) return; // socket buffer full; resume on the next OP_WRITE
+                        if (requestNanos != 0) {
+                            Metrics.FILESERVER_TTFB_US.recordMicrosSince(requestNanos);
+                            requestNanos = 0;
+                            sendStartNanos = System.nanoTime();
+                        }
+                        pace.consume(sent);
+                        Metrics.FILESERVER_BYTES.add(sent);
+                        position += sent;
+                        budget -= sent;
+                    }
+                    if (end - sendOffset > 0) {
+                        Metrics.FILESERVER_THROUGHPUT_KBPS.record(Metrics.kbPerSecond(end - sendOffset, System.nanoTime() - sendStartNanos));
+                    }
+                    file.close();
+                    file = null;
+                    pace.close();
+                    pace = null;
+                }
+                if (version != 2) {
+                    close();
+                    return;
+                }
+                V2Request next = queued.poll();
+                if (next == null) break;
+                startV2Response(next);
+            }
+            if (inputClosed) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
 
-            sendFile(client, entry.getFilePath());
-            client.close();
+        private void startV2Response(V2Request req) throws IOException {
+            Metrics.FILESERVER_REQUESTS.increment();
+            requestNanos = System.nanoTime();
+            FileRegistry.FileEntry entry = registry.getFile(req.code);
+            byte status;
+            long size = 0, offset = req.offset, length = 0;
+            String name = "";
+            if (entry == null || registry.isExpired(entry, System.currentTimeMillis())) {
+                status = V2_NOT_FOUND;
+            } else if (entry.getPassHash() != null) {
+                status = V2_FORBIDDEN;
+            } else {
+                FileChannel ch = FileChannel.open(Path.of(entry.getFilePath()), StandardOpenOption.READ);
+                size = ch.size();
+                name = entry.getOriginalName();
+                if (offset < 0 || offset > size) {
+                    ch.close();
+                    status = V2_BAD_RANGE;
+                } else if (!claim(req.code, entry)) {
+                    ch.close();
+                    status = V2_NOT_FOUND;
+                    size = 0;
+                    name = "";
+                } else {
+                    status = V2_OK;
+                    length = req.length < 0 ? size - offset : Math.min(req.length, size - offset);
+                    file = ch;
+                    pace = scheduler.open(req.code, clientAddress, 1);
+                    position = offset;
+                    sendOffset = offset;
+                    end = offset + length;
+                }
+            }
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            header = ByteBuffer.allocate(V2_RESPONSE_FIXED + nameBytes.length)
+                    .put(status).putInt(req.id).putLong(size).putLong(offset).putLong(length)
+                    .putShort((short) nameBytes.length).put(nameBytes)
+                    .flip();
+            // Reading may have been paused by back-pressure; the queue has room again
+            if (!inputClosed) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
-    }
 
-    private void sendFile(SocketChannel client, String filePath) throws IOException {
-        File file = new File(filePath);
-        try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
-            long position = 0;
-            long size = fileChannel.size();
+        // A one-time share goes to whoever removes it first; the open channel keeps the file readable
+        private boolean claim(String code, FileRegistry.FileEntry entry) {
+            return !entry.isOneTime() || registry.removeFile(code);
+        }
+
+        private void pause(long until) {
+            paused = true;
+            resumeAt = until;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            reactor.paused.add(this);
+        }
+
+        private boolean isIdle() {
+            return header == null && file == null;
+        }
 
-            while (position < size) {
-                long transferred = fileChannel.transferTo(position, size - position, client);
-                position += transferred;
+        void close() {
+            key.cancel();
+            if (file != null) {
+                try { file.close(); } catch (IOException ignored) {}
+                file = null;
             }
+            if (pace != null) {
+                pace.close();
+                pace = null;
+            }
+            try { client.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private record V2Request(int id, String code, long offset, long length) {
+    }
 
-            System.out.printf("Sent file %s (%d bytes) to %s%n",
-                    file.getName(), size, client.getRemoteAddress());
+    private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+        byte[] a = buffer.array();
+        for (int i = 0; i < prefix.length; i++) {
+            if (a[i] != prefix[i]) return false;
         }
+        return true;
     }
-}
 
+    private static int indexOf(ByteBuffer buffer, byte b) {
+        byte[] a = buffer.array();
+        for (int i = 0; i < buffer.position(); i++) {
+            if (a[i] == b) return i;
+        }
+        return -1;
+    }
+}
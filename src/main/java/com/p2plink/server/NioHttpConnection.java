@@ -0,0 +1,226 @@
+package com.p2plink.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One client connection of {@link NioHttpServer}. While a request is being handled the channel is in
+ * blocking mode and owned by a worker thread. Between requests it sits idle on the selector, and a
+ * response that outlives its handler (SSE) switches it to async mode, where writes are queued and
+ * flushed by the selector on OP_WRITE instead of blocking the writer.
+ */
+final class NioHttpConnection {
+
+    private final NioHttpServer server;
+    final SocketChannel channel;
+    private final int maxHeadSize;
+    private final long maxPendingBytes;
+
+    // Unread input lives between position and limit
+    private ByteBuffer readBuffer;
+
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private long pendingBytes;
+    private boolean async;
+    private boolean closeWhenFlushed;
+    private volatile boolean closed;
+    private SelectionKey key;
+    volatile long lastActive = System.currentTimeMillis();
+    // Enforced by the selector's sweep, which closes the channel to break a worker's blocking read:
+    // the time by which the request head must be complete, and when the current read began (0 = none)
+    volatile long headDeadline;
+    volatile long readStarted;
+
+    NioHttpConnection(NioHttpServer server, SocketChannel channel, int bufferSize, int maxHeadSize, long maxPendingBytes) {
+        this.server = server;
+        this.channel = channel;
+        this.maxHeadSize = maxHeadSize;
+        this.maxPendingBytes = maxPendingBytes;
+        this.readBuffer = ByteBuffer.allocate(bufferSize).flip();
+    }
+
+    ByteBuffer input() {
+        return readBuffer;
+    }
+
+    boolean hasBufferedInput() {
+        return readBuffer.hasRemaining();
+    }
+
+    /** Blocking read of more input, growing the buffer up to the request head limit if it is full. */
+    int fill() throws IOException {
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= maxHeadSize) {
+                readBuffer.flip();
+                throw new NioHttpServer.HttpProtocolException(431, "Request head too large");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(maxHeadSize, readBuffer.capacity() * 2));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+        int n;
+        try {
+            n = blockingRead(readBuffer);
+        } finally {
+            readBuffer.flip();
+        }
+        return n;
+    }
+
+    int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!readBuffer.hasRemaining()) {
+            // Large reads bypass the connection buffer and land directly in the caller's array
+            if (len >= readBuffer.capacity()) {
+                return blockingRead(ByteBuffer.wrap(b, off, len));
+            }
+            if (fill() < 0) return -1;
+        }
+        int n = Math.min(len, readBuffer.remaining());
+        readBuffer.get(b, off, n);
+        return n;
+    }
+
+    private int blockingRead(ByteBuffer dst) throws IOException {
+        readStarted = System.currentTimeMillis();
+        try {
+            return channel.read(dst);
+        } finally {
+            readStarted = 0;
+            lastActive = System.currentTimeMillis();
+        }
+    }
+
+    int read() throws IOException {
+        if (!readBuffer.hasRemaining() && fill() < 0) {
+            throw new EOFException("Connection closed mid-request");
+        }
+        return readBuffer.get() & 0xff;
+    }
+
+    synchronized void write(ByteBuffer... buffers) throws IOException {
+        if (closed) throw new IOException("Connection closed");
+        if (async) {
+            enqueue(buffers);
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        lastActive = System.currentTimeMillis();
+    }
+
+    synchronized boolean isAsync() {
+        return async;
+    }
+
+    /** Called by the worker once a streaming response outlives its handler; the selector takes over. */
+    synchronized void switchToAsync() throws IOException {
+        async = true;
+        channel.configureBlocking(false);
+    }
+
+    /** Async responses end the connection once their last bytes are flushed. */
+    synchronized void closeAfterFlush() {
+        if (pending.isEmpty()) {
+            close();
+        } else {
+            closeWhenFlushed = true;
+        }
+    }
+
+    private void enqueue(ByteBuffer[] buffers) throws IOException {
+        if (pending.isEmpty()) {
+            channel.write(buffers);
+        }
+        for (ByteBuffer buffer : buffers) {
+            if (!buffer.hasRemaining()) continue;
+            if (pendingBytes + buffer.remaining() > maxPendingBytes) {
+                close();
+                throw new IOException("Client is not keeping up, dropped connection");
+            }
+            // Callers may reuse their arrays once write returns, so keep a private copy
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer).flip();
+            pending.add(copy);
+            pendingBytes += copy.remaining();
+        }
+        if (!pending.isEmpty() && key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            server.wakeup();
+        }
+    }
+
+    /** Selector thread: registers the idle or async connection. */
+    synchronized void register(java.nio.channels.Selector selector) throws IOException {
+        if (closed) return;
+        int ops = pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        key = channel.register(selector, ops, this);
+    }
+
+    /** Selector thread: the key of an idle connection is handed back to a worker. */
+    synchronized void deregister() {
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+    }
+
+    /** Selector thread: flush queued async output. */
+    synchronized void flushPending() {
+        try {
+            while (!pending.isEmpty()) {
+                ByteBuffer head = pending.peek();
+                channel.write(head);
+                if (head.hasRemaining()) return;
+                pendingBytes -= head.capacity();
+                pending.poll();
+            }
+            lastActive = System.currentTimeMillis();
+            if (closeWhenFlushed) {
+                close();
+            } else if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /** Selector thread: an async connection only reads to notice the client going away. */
+    void discardInput() {
+        try {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            readBuffer.clear().flip();
+            if (n < 0) close();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (key != null) key.cancel();
+        pending.clear();
+        pendingBytes = 0;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        server.connectionClosed(this);
+    }
+}
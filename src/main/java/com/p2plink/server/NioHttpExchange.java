@@ -0,0 +1,522 @@
+package com.p2plink.server;
+
+import com.p2plink.utils.ZeroCopySink;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link HttpExchange} on top of a {@link NioHttpConnection}, so existing handlers run unchanged on the
+ * NIO engine. Responses with a known length are fixed-length, length 0 streams chunked (close-delimited
+ * for HTTP/1.0) and -1 sends no body, matching the JDK server's contract.
+ */
+final class NioHttpExchange extends HttpExchange {
+
+    enum Outcome { KEEP_ALIVE, ASYNC, CLOSE }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private final NioHttpConnection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final boolean keepAliveRequested;
+    private HttpContext context;
+
+    private InputStream requestBody;
+    private OutputStream responseBodyOverride;
+    private final ResponseStream responseBody = new ResponseStream();
+    private int responseCode = -1;
+
+    NioHttpExchange(NioHttpConnection connection, String method, URI uri, String protocol, Headers requestHeaders) throws IOException {
+        this.connection = connection;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+
+        String connectionHeader = requestHeaders.getFirst("Connection");
+        boolean http11 = "HTTP/1.1".equals(protocol);
+        this.keepAliveRequested = connectionHeader == null
+                ? http11
+                : (http11 ? !connectionHeader.equalsIgnoreCase("close") : connectionHeader.equalsIgnoreCase("keep-alive"));
+
+        String transferEncoding = requestHeaders.getFirst("Transfer-Encoding");
+        String contentLength = requestHeaders.getFirst("Content-Length");
+        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            requestBody = new ChunkedInputStream();
+        } else if (contentLength != null) {
+            long length;
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new NioHttpServer.HttpProtocolException(400, "Bad Content-Length");
+            }
+            if (length < 0) throw new NioHttpServer.HttpProtocolException(400, "Bad Content-Length");
+            requestBody = new FixedLengthInputStream(length);
+        } else {
+            requestBody = new FixedLengthInputStream(0);
+        }
+
+        String expect = requestHeaders.getFirst("Expect");
+        if (expect != null && expect.equalsIgnoreCase("100-continue") && http11) {
+            connection.write(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    void setContext(HttpContext context) {
+        this.context = context;
+    }
+
+    boolean isResponseStarted() {
+        return responseCode != -1;
+    }
+
+    /**
+     * Decides what happens to the connection once the handler has returned: reuse it, leave it to an
+     * exchange that is still streaming, or close it.
+     */
+    Outcome finish() throws IOException {
+        synchronized (responseBody) {
+            if (responseCode == -1) {
+                sendResponseHeaders(500, -1);
+                return Outcome.CLOSE;
+            }
+            if (!responseBody.isComplete()) {
+                connection.switchToAsync();
+                responseBody.async = true;
+                return Outcome.ASYNC;
+            }
+        }
+        if (!responseBody.keepAlive) return Outcome.CLOSE;
+        return drainRequestBody() ? Outcome.KEEP_ALIVE : Outcome.CLOSE;
+    }
+
+    // Unread request bytes must be consumed before the next pipelined request can be parsed
+    private boolean drainRequestBody() {
+        try {
+            byte[] scratch = new byte[8192];
+            long drained = 0;
+            int n;
+            while ((n = requestBody.read(scratch)) != -1) {
+                drained += n;
+                if (drained > MAX_DRAIN) return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        try {
+            synchronized (responseBody) {
+                if (responseCode == -1) {
+                    // Nothing was sent, so there is no response framing to preserve
+                    responseBody.keepAlive = false;
+                    connection.close();
+                    return;
+                }
+            }
+            getResponseBody().close();
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBodyOverride != null ? responseBodyOverride : responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        synchronized (responseBody) {
+            if (responseCode != -1) throw new IOException("Response headers already sent");
+            responseCode = rCode;
+
+            boolean head = method.equalsIgnoreCase("HEAD");
+            boolean noBodyAllowed = head || rCode == 204 || rCode == 304 || rCode < 200;
+            boolean keepAlive = keepAliveRequested && !connection.isAsync();
+            if (noBodyAllowed) {
+                if (responseLength > 0 && head) responseHeaders.set("Content-Length", Long.toString(responseLength));
+                responseBody.mode = ResponseStream.NONE;
+            } else if (responseLength > 0) {
+                responseHeaders.set("Content-Length", Long.toString(responseLength));
+                responseBody.mode = ResponseStream.FIXED;
+                responseBody.remaining = responseLength;
+            } else if (responseLength == 0) {
+                if ("HTTP/1.1".equals(protocol)) {
+                    responseHeaders.set("Transfer-Encoding", "chunked");
+                    responseBody.mode = ResponseStream.CHUNKED;
+                } else {
+                    keepAlive = false;
+                    responseBody.mode = ResponseStream.CLOSE_DELIMITED;
+                }
+            } else {
+                responseHeaders.set("Content-Length", "0");
+                responseBody.mode = ResponseStream.NONE;
+            }
+            responseBody.keepAlive = keepAlive;
+            if (!keepAlive) {
+                responseHeaders.set("Connection", "close");
+            }
+
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(protocol.equals("HTTP/1.0") ? "HTTP/1.0 " : "HTTP/1.1 ")
+                    .append(rCode).append(' ').append(NioHttpServer.reasonPhrase(rCode)).append("\r\n");
+            sb.append("Date: ").append(httpDate()).append("\r\n");
+            for (Map.Entry<String, java.util.List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    sb.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            sb.append("\r\n");
+            responseBody.head = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+            // Fixed-length heads ride along with the first body write; everything else goes out now
+            if (responseBody.mode != ResponseStream.FIXED) {
+                responseBody.flushHead();
+            }
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        try {
+            return (InetSocketAddress) connection.channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) connection.channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) attributes.remove(name);
+        else attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) requestBody = i;
+        if (o != null) responseBodyOverride = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private static volatile long cachedDateSecond;
+    private static volatile String cachedDate;
+
+    private static String httpDate() {
+        long second = System.currentTimeMillis() / 1000;
+        String date = cachedDate;
+        if (date == null || second != cachedDateSecond) {
+            date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+            cachedDate = date;
+            cachedDateSecond = second;
+        }
+        return date;
+    }
+
+    private final class ResponseStream extends OutputStream implements ZeroCopySink {
+        static final int NONE = 0, FIXED = 1, CHUNKED = 2, CLOSE_DELIMITED = 3;
+
+        int mode = NONE;
+        long remaining;
+        ByteBuffer head;
+        boolean keepAlive;
+        boolean async;
+        private boolean closed;
+        private ByteBuffer stallBuffer;
+
+        boolean isComplete() {
+            return closed || mode == NONE || (mode == FIXED && remaining == 0);
+        }
+
+        void flushHead() throws IOException {
+            if (head != null) {
+                ByteBuffer h = head;
+                head = null;
+                connection.write(h);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            write(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public synchronized void write(ByteBuffer data) throws IOException {
+            if (responseCode == -1) throw new IOException("Response headers not sent yet");
+            if (closed) throw new IOException("Response body already closed");
+            int len = data.remaining();
+            if (len == 0) return;
+            switch (mode) {
+                case NONE:
+                    if (method.equalsIgnoreCase("HEAD")) return;
+                    throw new IOException("Response has no body");
+                case FIXED:
+                    if (len > remaining) throw new IOException("Too many bytes for declared Content-Length");
+                    remaining -= len;
+                    writeWithHead(data);
+                    break;
+                case CHUNKED:
+                    ByteBuffer chunkHead = ByteBuffer.wrap((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    writeWithHead(chunkHead, data, ByteBuffer.wrap(CRLF));
+                    break;
+                default:
+                    writeWithHead(data);
+            }
+        }
+
+        private void writeWithHead(ByteBuffer... body) throws IOException {
+            if (head == null) {
+                connection.write(body);
+                return;
+            }
+            ByteBuffer[] all = new ByteBuffer[body.length + 1];
+            all[0] = head;
+            System.arraycopy(body, 0, all, 1, body.length);
+            head = null;
+            connection.write(all);
+        }
+
+        @Override
+        public synchronized long transferFrom(FileChannel src, long position, long count) throws IOException {
+            if (closed) throw new IOException("Response body already closed");
+            if (mode == FIXED) count = Math.min(count, remaining);
+            if (count <= 0) return 0;
+            if (async || mode == NONE) {
+                // Queued writes cannot use sendfile; fall back to an ordinary copy
+                byte[] copy = new byte[(int) Math.min(count, 64 * 1024)];
+                int n = src.read(ByteBuffer.wrap(copy), position);
+                if (n <= 0) return n;
+                write(copy, 0, n);
+                return n;
+            }
+
+            if (mode == CHUNKED) {
+                writeWithHead(ByteBuffer.wrap((Long.toHexString(count) + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+            } else {
+                flushHead();
+            }
+            long sent = 0;
+            while (sent < count) {
+                long n = src.transferTo(position + sent, count - sent, connection.channel);
+                if (n > 0) {
+                    sent += n;
+                    continue;
+                }
+                // On a virtual thread the socket is non-blocking underneath, so sendfile returns 0 when the
+                // send buffer is full; push one block through the ordinary write, which parks until writable
+                if (stallBuffer == null) stallBuffer = ByteBuffer.allocate(64 * 1024);
+                stallBuffer.clear().limit((int) Math.min(stallBuffer.capacity(), count - sent));
+                int r = src.read(stallBuffer, position + sent);
+                if (r <= 0) break;
+                connection.write(stallBuffer.flip());
+                sent += r;
+            }
+            if (mode == CHUNKED) {
+                if (sent < count) throw new IOException("File shrank during chunked transfer");
+                connection.write(ByteBuffer.wrap(CRLF));
+            } else if (mode == FIXED) {
+                remaining -= sent;
+            }
+            connection.lastActive = System.currentTimeMillis();
+            return sent;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (this) {
+                if (closed) return;
+                flushHead();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                try {
+                    if (mode == CHUNKED) {
+                        writeWithHead(ByteBuffer.wrap(LAST_CHUNK));
+                    } else {
+                        flushHead();
+                    }
+                } catch (IOException e) {
+                    keepAlive = false;
+                    connection.close();
+                    throw e;
+                }
+                if (mode == FIXED && remaining > 0) keepAlive = false;
+                if (mode == CLOSE_DELIMITED) keepAlive = false;
+                if (!async) return;
+            }
+            connection.closeAfterFlush();
+        }
+    }
+
+    private final class FixedLengthInputStream extends InputStream {
+        private long remaining;
+
+        FixedLengthInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            remaining--;
+            return connection.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = connection.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) throw new IOException("Connection closed mid-body");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, connection.input().remaining());
+        }
+    }
+
+    private final class ChunkedInputStream extends InputStream {
+        private long chunkRemaining;
+        private boolean eof;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) return -1;
+            if (chunkRemaining == 0) {
+                chunkRemaining = nextChunkSize();
+                if (chunkRemaining == 0) {
+                    // Skip trailers up to the blank line
+                    while (!readLine().isEmpty()) { }
+                    eof = true;
+                    return -1;
+                }
+            }
+            int n = connection.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n < 0) throw new IOException("Connection closed mid-chunk");
+            chunkRemaining -= n;
+            if (chunkRemaining == 0) readLine();
+            return n;
+        }
+
+        private long nextChunkSize() throws IOException {
+            String line = readLine();
+            int ext = line.indexOf(';');
+            try {
+                return Long.parseLong((ext >= 0 ? line.substring(0, ext) : line).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size: " + line);
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = connection.read()) != '\n') {
+                if (c != '\r') sb.append((char) c);
+                if (sb.length() > 4096) throw new IOException("Chunk line too long");
+            }
+            return sb.toString();
+        }
+    }
+}
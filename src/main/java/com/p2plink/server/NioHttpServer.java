@@ -0,0 +1,515 @@
+package com.p2plink.server;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP/1.1 engine built on the same Selector accept/read loop as {@link FileServer}, exposed as a
+ * {@link HttpServer} so the existing handlers run on it unchanged.
+ *
+ * The selector thread owns accepts, idle keep-alive connections and async (SSE) output. When an idle
+ * connection has a request, it is handed to the executor, which parses and serves requests in blocking
+ * mode until the read buffer holds no further pipelined request, then parks the connection back on
+ * the selector. Handlers therefore see plain blocking streams, downloads can {@code transferTo}
+ * straight into the socket, and an idle keep-alive connection costs no thread.
+ */
+public class NioHttpServer extends HttpServer {
+
+    private final List<NioContext> contexts = new CopyOnWriteArrayList<>();
+    private final Set<NioHttpConnection> connections = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<NioHttpConnection> toRegister = new ConcurrentLinkedQueue<>();
+
+    private final int bufferSize;
+    private final int maxHeadSize;
+    private final long maxPendingBytes;
+    private final long keepAliveMillis;
+    private volatile long headTimeoutMillis = 10_000;
+    private volatile long readIdleMillis = 30_000;
+
+    private InetSocketAddress address;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    public NioHttpServer(int bufferSize, int maxHeadSize, long maxPendingBytes, long keepAliveMillis) {
+        this.bufferSize = bufferSize;
+        this.maxHeadSize = maxHeadSize;
+        this.maxPendingBytes = maxPendingBytes;
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * Read limits for requests being served: the head must arrive within {@code headMillis} of the
+     * request starting, and no single body read may wait longer than {@code idleMillis}. A connection
+     * that misses either is closed. Zero disables a limit.
+     */
+    public void setReadTimeouts(long headMillis, long idleMillis) {
+        this.headTimeoutMillis = headMillis;
+        this.readIdleMillis = idleMillis;
+    }
+
+    public static NioHttpServer create(InetSocketAddress addr) throws IOException {
+        NioHttpServer server = new NioHttpServer(16 * 1024, 64 * 1024, 1024 * 1024, 60_000);
+        server.bind(addr, 0);
+        return server;
+    }
+
+    static class HttpProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpProtocolException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    @Override
+    public void bind(InetSocketAddress addr, int backlog) throws IOException {
+        if (serverChannel != null) throw new IllegalStateException("Already bound");
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(addr, backlog);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        address = (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    @Override
+    public void start() {
+        if (serverChannel == null) throw new IllegalStateException("Server not bound");
+        if (executor == null) {
+            defaultExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            executor = defaultExecutor;
+        }
+        running = true;
+        selectorThread = new Thread(this::run, "nio-http-selector");
+        selectorThread.start();
+    }
+
+    private void run() {
+        List<NioHttpConnection> ready = new ArrayList<>();
+        long lastIdleSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                if (selector.selectedKeys().isEmpty()) {
+                    selector.select(1000);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        handleAccept();
+                    } else {
+                        NioHttpConnection conn = (NioHttpConnection) key.attachment();
+                        if (conn.isAsync()) {
+                            if (key.isWritable()) conn.flushPending();
+                            if (key.isValid() && key.isReadable()) conn.discardInput();
+                        } else if (key.isReadable()) {
+                            conn.deregister();
+                            ready.add(conn);
+                        }
+                    }
+                }
+
+                NioHttpConnection conn;
+                while ((conn = toRegister.poll()) != null) {
+                    try {
+                        conn.register(selector);
+                    } catch (IOException | CancelledKeyException e) {
+                        conn.close();
+                    }
+                }
+
+                if (!ready.isEmpty()) {
+                    // Cancelled keys are only deregistered by a select; the channels must be free of the
+                    // selector before workers can switch them to blocking mode
+                    selector.selectNow();
+                    for (NioHttpConnection c : ready) {
+                        dispatch(c);
+                    }
+                    ready.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleSweep >= 1000) {
+                    closeIdle(now);
+                    closeStalled(now);
+                    lastIdleSweep = now;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) System.err.println("HTTP selector error: " + e.getMessage());
+        }
+    }
+
+    private void handleAccept() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            NioHttpConnection conn = new NioHttpConnection(this, client, bufferSize, maxHeadSize, maxPendingBytes);
+            connections.add(conn);
+            conn.register(selector);
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (NioHttpConnection conn : connections) {
+            // Async connections stay open for as long as their exchange streams
+            if (!conn.isAsync() && now - conn.lastActive > keepAliveMillis && isParked(conn)) {
+                conn.close();
+            }
+        }
+    }
+
+    // Blocking reads ignore socket timeouts, so a client that trickles a request (slowloris) or stops
+    // sending its body would hold a worker forever; closing the channel makes the read fail instead
+    private void closeStalled(long now) {
+        long idle = readIdleMillis;
+        for (NioHttpConnection conn : connections) {
+            long deadline = conn.headDeadline;
+            long started = conn.readStarted;
+            if ((deadline > 0 && now > deadline) || (idle > 0 && started > 0 && now - started > idle)) {
+                conn.close();
+            }
+        }
+    }
+
+    private boolean isParked(NioHttpConnection conn) {
+        SelectionKey key = conn.channel.keyFor(selector);
+        return key != null && key.isValid();
+    }
+
+    private void dispatch(NioHttpConnection conn) {
+        try {
+            executor.execute(() -> serve(conn));
+        } catch (RuntimeException e) {
+            conn.close();
+        }
+    }
+
+    /** Worker side: serves requests until the connection goes idle, async or closed. */
+    private void serve(NioHttpConnection conn) {
+        try {
+            conn.channel.configureBlocking(true);
+            while (running) {
+                NioHttpExchange exchange;
+                try {
+                    exchange = readRequest(conn);
+                } catch (HttpProtocolException e) {
+                    String body = e.getMessage();
+                    String resp = "HTTP/1.1 " + e.status + " " + reasonPhrase(e.status) + "\r\n"
+                            + "Content-Length: " + body.length() + "\r\nConnection: close\r\n\r\n" + body;
+                    conn.write(ByteBuffer.wrap(resp.getBytes(StandardCharsets.ISO_8859_1)));
+                    conn.close();
+                    return;
+                }
+                if (exchange == null) {
+                    conn.close();
+                    return;
+                }
+
+                NioContext context = findContext(exchange.getRequestURI().getPath());
+                try {
+                    if (context == null) {
+                        byte[] body = "No context found for request".getBytes(StandardCharsets.UTF_8);
+                        exchange.sendResponseHeaders(404, body.length);
+                        exchange.getResponseBody().write(body);
+                        exchange.close();
+                    } else {
+                        exchange.setContext(context);
+                        new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+                    }
+                } catch (Exception e) {
+                    if (!exchange.isResponseStarted()) {
+                        System.err.println("HTTP handler error: " + e);
+                        try {
+                            exchange.sendResponseHeaders(500, -1);
+                        } catch (IOException ignored) {
+                        }
+                    } else {
+                        System.err.println("HTTP handler error after response started: " + e);
+                    }
+                    conn.close();
+                    return;
+                }
+
+                switch (exchange.finish()) {
+                    case KEEP_ALIVE:
+                        if (conn.hasBufferedInput()) continue; // pipelined request already read
+                        park(conn);
+                        return;
+                    case ASYNC:
+                        toRegister.add(conn);
+                        selector.wakeup();
+                        return;
+                    default:
+                        conn.close();
+                        return;
+                }
+            }
+            conn.close();
+        } catch (IOException e) {
+            conn.close();
+        }
+    }
+
+    private void park(NioHttpConnection conn) throws IOException {
+        conn.channel.configureBlocking(false);
+        toRegister.add(conn);
+        selector.wakeup();
+    }
+
+    private NioHttpExchange readRequest(NioHttpConnection conn) throws IOException {
+        ByteBuffer in = conn.input();
+        int headEnd;
+        long headTimeout = headTimeoutMillis;
+        if (headTimeout > 0) conn.headDeadline = System.currentTimeMillis() + headTimeout;
+        try {
+            while ((headEnd = findHeadEnd(in)) < 0) {
+                if (conn.fill() < 0) {
+                    if (!in.hasRemaining()) return null;
+                    throw new HttpProtocolException(400, "Connection closed mid-request");
+                }
+            }
+        } finally {
+            conn.headDeadline = 0;
+        }
+
+        String head = new String(in.array(), in.position(), headEnd - in.position(), StandardCharsets.ISO_8859_1);
+        in.position(headEnd + 4);
+        String[] lines = head.split("\r\n");
+        int first = 0;
+        while (first < lines.length && lines[first].isEmpty()) first++; // tolerate stray CRLFs between requests
+        if (first == lines.length) throw new HttpProtocolException(400, "Empty request");
+
+        String[] requestLine = lines[first].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new HttpProtocolException(400, "Bad request line");
+        }
+        URI uri;
+        try {
+            uri = new URI(requestLine[1]);
+        } catch (URISyntaxException e) {
+            throw new HttpProtocolException(400, "Bad request target");
+        }
+
+        Headers headers = new Headers();
+        for (int i = first + 1; i < lines.length; i++) {
+            String line = lines[i];
+            int colon = line.indexOf(':');
+            if (colon <= 0) throw new HttpProtocolException(400, "Bad header line");
+            headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+        return new NioHttpExchange(conn, requestLine[0], uri, requestLine[2], headers);
+    }
+
+    private static int findHeadEnd(ByteBuffer in) {
+        byte[] a = in.array();
+        for (int i = in.position(); i + 3 < in.limit(); i++) {
+            if (a[i] == '\r' && a[i + 1] == '\n' && a[i + 2] == '\r' && a[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private NioContext findContext(String path) {
+        NioContext best = null;
+        for (NioContext context : contexts) {
+            if (path.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    void connectionClosed(NioHttpConnection conn) {
+        connections.remove(conn);
+    }
+
+    void wakeup() {
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (running) throw new IllegalStateException("Server already started");
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void stop(int delay) {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        if (selector != null) selector.wakeup();
+        if (selectorThread != null) {
+            try {
+                selectorThread.join(Math.max(1, delay * 1000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (NioHttpConnection conn : connections) {
+            conn.close();
+        }
+        try {
+            if (selector != null) selector.close();
+        } catch (IOException ignored) {
+        }
+        if (defaultExecutor != null) defaultExecutor.shutdown();
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        NioContext context = new NioContext(path, handler);
+        for (NioContext existing : contexts) {
+            if (existing.path.equals(path)) throw new IllegalArgumentException("Context already exists: " + path);
+        }
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (!contexts.removeIf(c -> c.path.equals(path))) {
+            throw new IllegalArgumentException("No context for " + path);
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        contexts.remove(context);
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    static String reasonPhrase(int code) {
+        switch (code) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 410: return "Gone";
+            case 413: return "Payload Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+
+    private final class NioContext extends HttpContext {
+        private final String path;
+        private volatile HttpHandler handler;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private Authenticator authenticator;
+
+        NioContext(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return NioHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator old = authenticator;
+            authenticator = auth;
+            return old;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
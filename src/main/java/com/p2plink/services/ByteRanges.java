@@ -0,0 +1,75 @@
+package com.p2plink.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RFC 7233 {@code Range: bytes=...} parsing: {@code a-b}, open-ended {@code a-} and suffix {@code -n}
+ * specs, comma-separated. Satisfiable ranges are clamped to the file, sorted and coalesced where they
+ * overlap or touch, so a client cannot make us send the same bytes twice.
+ */
+final class ByteRanges {
+
+    // More parts than this after coalescing is not worth the multipart framing; the whole file is sent
+    static final int MAX_RANGES = 64;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * Returns {@code [start, end]} pairs (inclusive), an empty list when no range is satisfiable (416),
+     * or null when the header should be ignored and the whole file sent: absent, not a bytes range,
+     * malformed, or too many ranges.
+     */
+    static List<long[]> parse(String header, long total) {
+        if (header == null) return null;
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        List<long[]> ranges = new ArrayList<>();
+        boolean any = false;
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) continue;
+            any = true;
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            long start, end;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) return null;
+                    if (suffix == 0 || total == 0) continue;
+                    start = Math.max(0, total - suffix);
+                    end = total - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash).trim());
+                    String last = spec.substring(dash + 1).trim();
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) return null;
+                    if (start >= total) continue;
+                    end = Math.min(end, total - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            ranges.add(new long[]{start, end});
+        }
+        if (!any) return null;
+        if (ranges.size() <= 1) return ranges;
+
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>();
+        long[] current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] r = ranges.get(i);
+            if (r[0] <= current[1] + 1) {
+                current[1] = Math.max(current[1], r[1]);
+            } else {
+                merged.add(current);
+                current = r;
+            }
+        }
+        merged.add(current);
+        return merged.size() > MAX_RANGES ? null : merged;
+    }
+}
@@ -0,0 +1,56 @@
+package com.p2plink.services;
+
+import java.util.Random;
+
+/**
+ * The unused share codes of {@code [0, capacity)} kept as an array with an index of where each code
+ * sits in it. A random code is handed out by swapping a random slot with the last one, so allocation,
+ * release and reserving a specific code are all O(1) however full the code space is. Not thread-safe.
+ */
+final class CodeAllocator {
+
+    private final int[] free;
+    private final int[] slotOf; // position of each code in free, -1 while allocated
+    private int freeCount;
+    private final Random random = new Random();
+
+    CodeAllocator(int capacity) {
+        free = new int[capacity];
+        slotOf = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = i;
+            slotOf[i] = i;
+        }
+        freeCount = capacity;
+    }
+
+    int allocate() {
+        if (freeCount == 0) {
+            throw new IllegalStateException("No free share codes left");
+        }
+        int code = free[random.nextInt(freeCount)];
+        reserve(code);
+        return code;
+    }
+
+    /** Marks {@code code} as in use; false if it already was. */
+    boolean reserve(int code) {
+        int slot = slotOf[code];
+        if (slot < 0) return false;
+        int last = free[--freeCount];
+        free[slot] = last;
+        slotOf[last] = slot;
+        slotOf[code] = -1;
+        return true;
+    }
+
+    void release(int code) {
+        if (slotOf[code] >= 0) return;
+        free[freeCount] = code;
+        slotOf[code] = freeCount++;
+    }
+
+    int freeCount() {
+        return freeCount;
+    }
+}
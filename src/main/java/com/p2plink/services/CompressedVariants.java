@@ -0,0 +1,168 @@
+package com.p2plink.services;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-Encoding support for downloads. A compressible file is compressed on the fly the first time
+ * a client asks for an encoding, and the same bytes are written to {@code <file>.gz} / {@code <file>.zz}
+ * next to it. Later requests find the variant on disk and send it like any other file, zero-copy and
+ * with a Content-Length. Variants are deleted together with their file by {@link FileRegistry}.
+ */
+final class CompressedVariants {
+
+    static final String GZIP = "gzip", DEFLATE = "deflate";
+    static final String[] SUFFIXES = {".gz", ".zz"};
+
+    // Below this the headers cost more than the saving
+    private static final long MIN_SIZE = 1024;
+    private static final int SAMPLE = 64 * 1024;
+    private static final int MAX_VERDICTS = 100_000;
+
+    // file path -> whether a sample of it compressed well enough to bother
+    private final Map<String, Boolean> compressible = new ConcurrentHashMap<>();
+
+    /** The encoding to use for an {@code Accept-Encoding} header, or null for identity. Prefers gzip. */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        double gzip = -1, deflate = -1, any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] p = part.trim().split(";");
+            String coding = p[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < p.length; i++) {
+                String param = p[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            switch (coding) {
+                case "gzip", "x-gzip" -> gzip = q;
+                case "deflate" -> deflate = q;
+                case "*" -> any = q;
+                default -> { }
+            }
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        if (gzip > 0 && gzip >= deflate) return GZIP;
+        if (deflate > 0) return DEFLATE;
+        return null;
+    }
+
+    static Path variantPath(Path file, String encoding) {
+        return file.resolveSibling(file.getFileName() + (GZIP.equals(encoding) ? SUFFIXES[0] : SUFFIXES[1]));
+    }
+
+    /** Whether {@code file} is worth compressing, judged once from a fast deflate of its first 64 KB. */
+    boolean isCompressible(Path file, long size) throws IOException {
+        if (size < MIN_SIZE) return false;
+        String key = file.toString();
+        Boolean verdict = compressible.get(key);
+        if (verdict != null) return verdict;
+
+        byte[] sample;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(SAMPLE, size));
+            while (buf.hasRemaining() && ch.read(buf) > 0) { }
+            sample = buf.array();
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        long out = 0;
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] sink = new byte[8192];
+            while (!deflater.finished()) out += deflater.deflate(sink);
+        } finally {
+            deflater.end();
+        }
+        verdict = out < sample.length * 0.9;
+        if (compressible.size() >= MAX_VERDICTS) compressible.clear();
+        compressible.put(key, verdict);
+        return verdict;
+    }
+
+    /**
+     * Compresses {@code src} into {@code out}. When {@code variant} is non-null the compressed bytes are
+     * also written to a temp file that replaces it once the whole body has gone out; a client that hangs
+     * up early leaves nothing behind.
+     */
+    static void compress(FileChannel src, long size, String encoding, OutputStream out, Path variant) throws IOException {
+        Path tmp = variant == null ? null
+                : Files.createTempFile(variant.getParent(), variant.getFileName().toString(), ".tmp");
+        boolean kept = false;
+        try {
+            try (OutputStream copy = tmp == null ? null : Files.newOutputStream(tmp);
+                 OutputStream z = wrap(new BufferedOutputStream(tmp == null ? out : new Tee(out, copy), 64 * 1024), encoding)) {
+                ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+                long pos = 0;
+                while (pos < size) {
+                    buf.clear();
+                    int n = src.read(buf, pos);
+                    if (n <= 0) throw new EOFException("File shrank while compressing");
+                    z.write(buf.array(), 0, n);
+                    pos += n;
+                }
+            }
+            if (tmp != null) {
+                Files.move(tmp, variant, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                kept = true;
+            }
+        } finally {
+            if (tmp != null && !kept) Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static OutputStream wrap(OutputStream out, String encoding) throws IOException {
+        return GZIP.equals(encoding) ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out);
+    }
+
+    // Response body first, so a write failure on the socket stops the copy before the variant is kept
+    private static final class Tee extends OutputStream {
+        private final OutputStream first, second;
+
+        Tee(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                first.close();
+            } finally {
+                second.close();
+            }
+        }
+    }
+}
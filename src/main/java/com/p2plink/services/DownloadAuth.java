@@ -0,0 +1,114 @@
+package com.p2plink.services;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps BCrypt off the hot path for passphrase-protected shares. A successful passphrase check issues
+ * a short-lived token {@code <expiresAt>.<hmac>} bound to the share code and its creation time, so it
+ * dies with the share even if the code is handed out again. Clients that keep resending the passphrase
+ * instead (segmented downloaders) hit a bounded cache of recent successful checks.
+ *
+ * The HMAC key is random per process, so tokens do not survive a restart; clients fall back to the
+ * passphrase once.
+ */
+public class DownloadAuth {
+
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64D = Base64.getUrlDecoder();
+
+    private final Mac prototype;
+    private final long tokenTtlMillis;
+    private final int cacheSize;
+    // HMAC of (code, createdAt, passphrase) -> valid until; holds no passphrase material
+    private final Map<String, Long> verified = new ConcurrentHashMap<>();
+
+    public DownloadAuth(long tokenTtlMillis, int cacheSize) {
+        this.tokenTtlMillis = tokenTtlMillis;
+        this.cacheSize = cacheSize;
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        try {
+            prototype = Mac.getInstance("HmacSHA256");
+            prototype.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    public long getTokenTtlMillis() {
+        return tokenTtlMillis;
+    }
+
+    public String issueToken(String code, FileRegistry.FileEntry entry, long now) {
+        long expiresAt = now + tokenTtlMillis;
+        return expiresAt + "." + B64.encodeToString(sign(code, entry.getCreatedAt(), expiresAt));
+    }
+
+    public boolean verifyToken(String token, String code, FileRegistry.FileEntry entry, long now) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) return false;
+        long expiresAt;
+        byte[] mac;
+        try {
+            expiresAt = Long.parseLong(token.substring(0, dot));
+            mac = B64D.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (now > expiresAt) return false;
+        return MessageDigest.isEqual(mac, sign(code, entry.getCreatedAt(), expiresAt));
+    }
+
+    /** BCrypt check of {@code passphrase}, skipped when the same one succeeded within the token lifetime. */
+    public boolean checkPassphrase(String passphrase, String code, FileRegistry.FileEntry entry, long now) {
+        String key = cacheKey(code, entry.getCreatedAt(), passphrase);
+        Long until = verified.get(key);
+        if (until != null) {
+            if (now <= until) return true;
+            verified.remove(key, until);
+        }
+        if (!BCrypt.checkpw(passphrase, entry.getPassHash())) return false;
+        if (verified.size() >= cacheSize) {
+            verified.values().removeIf(t -> t < now);
+        }
+        if (verified.size() < cacheSize) {
+            verified.put(key, now + tokenTtlMillis);
+        }
+        return true;
+    }
+
+    private byte[] sign(String code, long createdAt, long expiresAt) {
+        Mac mac = newMac();
+        mac.update(code.getBytes(StandardCharsets.UTF_8));
+        mac.update(ByteBuffer.allocate(16).putLong(createdAt).putLong(expiresAt).array());
+        return mac.doFinal();
+    }
+
+    private String cacheKey(String code, long createdAt, String passphrase) {
+        Mac mac = newMac();
+        mac.update(code.getBytes(StandardCharsets.UTF_8));
+        mac.update(ByteBuffer.allocate(8).putLong(createdAt).array());
+        mac.update(passphrase.getBytes(StandardCharsets.UTF_8));
+        return B64.encodeToString(mac.doFinal());
+    }
+
+    // Mac is not thread-safe; a clone of the keyed prototype is far cheaper than a fresh init
+    private Mac newMac() {
+        try {
+            return (Mac) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
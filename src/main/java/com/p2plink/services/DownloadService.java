@@ -2,24 +2,82 @@ package com.p2plink.services;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
-import org.mindrot.jbcrypt.BCrypt;
 
+import com.p2plink.utils.BandwidthScheduler;
+import com.p2plink.utils.Metrics;
+import com.p2plink.utils.TransferUtils;
 import java.io.*;
-import java.nio.channels.Channels;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class DownloadService {
 
     private final FileRegistry registry;
     private final SseHub sseHub;
+    private final int transferWindow;
+    private final DownloadAuth auth;
+    private final CompressedVariants variants = new CompressedVariants();
+    // Responses up to this size take a bigger share of a contended link, so they finish in predictable time
+    private static final long SMALL_TRANSFER_BYTES = 1024 * 1024;
+    private static final int SMALL_TRANSFER_WEIGHT = 4;
+    private static final String EXPOSED_HEADERS = "X-Recommended-Segments, Content-Range";
+
+    private volatile BandwidthScheduler scheduler = new BandwidthScheduler(0, 0, 0);
+    private volatile int maxSegments = 4;
+    private volatile long minSegmentBytes = 8L * 1024 * 1024;
+    private volatile HotFileCache hotCache;
+    private volatile Set<String> trustedProxies = Set.of();
 
     public DownloadService(FileRegistry registry, SseHub sseHub) {
+        this(registry, sseHub, TransferUtils.DEFAULT_WINDOW);
+    }
+
+    public DownloadService(FileRegistry registry, SseHub sseHub, int transferWindow) {
+        this(registry, sseHub, transferWindow, new DownloadAuth(10 * 60 * 1000L, 10_000));
+    }
+
+    public DownloadService(FileRegistry registry, SseHub sseHub, int transferWindow, DownloadAuth auth) {
         this.registry = registry;
         this.sseHub = sseHub;
+        this.transferWindow = transferWindow;
+        this.auth = auth;
+    }
+
+    /** Paces every response body; share limits apply per share code, client limits per remote address. */
+    public void setBandwidthScheduler(BandwidthScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Peers whose X-Real-IP / X-Forwarded-For are believed, so per-client bandwidth limits apply to the
+     * real client behind a reverse proxy instead of to the proxy as a whole.
+     */
+    public void setTrustedProxies(Set<String> trustedProxies) {
+        this.trustedProxies = Set.copyOf(trustedProxies);
+    }
+
+    /** Serves popular small files from memory; one-time shares always come from disk. */
+    public void setHotFileCache(HotFileCache hotCache) {
+        this.hotCache = hotCache;
+    }
+
+    /** Bounds for the X-Recommended-Segments hint sent with every download. */
+    public void setSegmentHint(int maxSegments, long minSegmentBytes) {
+        this.maxSegments = Math.max(1, maxSegments);
+        this.minSegmentBytes = Math.max(1, minSegmentBytes);
     }
 
     public void streamFile(HttpExchange exchange, String fileId) throws IOException {
+        long startNanos = System.nanoTime();
         FileRegistry.FileEntry entry = registry.getFile(fileId);
 
         if (entry == null) {
@@ -33,11 +91,18 @@ public class DownloadService {
             return;
         }
         if (entry.getPassHash() != null) {
-            String provided = exchange.getRequestHeaders().getFirst("X-Passphrase");
-            if (provided == null || !BCrypt.checkpw(provided, entry.getPassHash())) {
-                exchange.getResponseHeaders().add("WWW-Authenticate", "Bearer realm=\"share\"");
-                sendResponse(exchange, 401, "Unauthorized: passphrase required or invalid");
-                return;
+            // A token from an earlier passphrase check costs one HMAC; otherwise check the passphrase and hand one out
+            String token = downloadToken(exchange);
+            if (token == null || !auth.verifyToken(token, fileId, entry, now)) {
+                String provided = exchange.getRequestHeaders().getFirst("X-Passphrase");
+                if (provided == null || !auth.checkPassphrase(provided, fileId, entry, now)) {
+                    exchange.getResponseHeaders().add("WWW-Authenticate", "Bearer realm=\"share\"");
+                    sendResponse(exchange, 401, "Unauthorized: passphrase required or invalid");
+                    return;
+                }
+                Headers h = exchange.getResponseHeaders();
+                h.add("X-Download-Token", auth.issueToken(fileId, entry, now));
+                h.add("X-Download-Token-Expires-In", Long.toString(auth.getTokenTtlMillis() / 1000));
             }
         }
 
@@ -49,60 +114,202 @@ public class DownloadService {
         headers.add("Accept-Ranges", "bytes");
         headers.add("Content-Disposition", "attachment; filename=\"" + fileName  + "\"");
         headers.add("Content-Type", "application/octet-stream");
-        long total = file.length();
-        String range = exchange.getRequestHeaders().getFirst("Range");
-        long start = 0, end = total - 1;
-        boolean partial = false;
-
-        if (range != null && range.startsWith("bytes=")) {
-            partial = true;
-            String spec = range.substring(6).trim();
-            if (spec.endsWith("-")) {
-                start = Long.parseLong(spec.substring(0, spec.length() - 1));
-            } else {
-                String[] p = spec.split("-");
-                start = Long.parseLong(p[0]);
-                end = Long.parseLong(p[1]);
-            }
-            if (start < 0 || start >= total || end < start || end >= total) {
-                headers.add("Content-Range", "bytes */" + total);
-                sendResponse(exchange, 416, "Requested Range Not Satisfiable");
-                return;
-            }
+        // One header naming everything a browser client may read, including a token issued above
+        headers.set("Access-Control-Expose-Headers", headers.containsKey("X-Download-Token")
+                ? "X-Download-Token, X-Download-Token-Expires-In, " + EXPOSED_HEADERS : EXPOSED_HEADERS);
+        // A hit answers the whole request from memory, without even a stat of the file
+        HotFileCache cache = entry.isOneTime() ? null : hotCache;
+        ByteBuffer content = cache == null ? null : cache.get(entry.getFilePath());
+        long total = content != null ? content.remaining() : file.length();
+        List<long[]> ranges = ByteRanges.parse(exchange.getRequestHeaders().getFirst("Range"), total);
+        if (ranges != null && ranges.isEmpty()) {
+            headers.add("Content-Range", "bytes */" + total);
+            sendResponse(exchange, 416, "Requested Range Not Satisfiable");
+            return;
         }
+        boolean partial = ranges != null;
+        long start = partial ? ranges.get(0)[0] : 0;
+        headers.add("X-Recommended-Segments", Integer.toString(recommendedSegments(total, entry)));
 
+        Metrics.DOWNLOAD_STARTED.increment();
         if (sseHub != null) sseHub.publish(fileId, "download_started",
                 "{\"fileId\":\"" + fileId + "\",\"partial\":" + partial + ",\"start\":" + start + ",\"total\":" + total + "}");
 
+        long bytes = total;
+        if (partial) {
+            bytes = 0;
+            for (long[] r : ranges) bytes += r[1] - r[0] + 1;
+        }
+        try (BandwidthScheduler.Transfer pace = scheduler.open(fileId, clientAddress(exchange, trustedProxies),
+                bytes <= SMALL_TRANSFER_BYTES ? SMALL_TRANSFER_WEIGHT : 1)) {
+            long sendStart = System.nanoTime();
+            send(exchange, entry, file.toPath(), content, ranges, total, pace, startNanos);
+            Metrics.DOWNLOAD_BYTES.add(bytes);
+            if (bytes > 0) Metrics.DOWNLOAD_THROUGHPUT_KBPS.record(Metrics.kbPerSecond(bytes, System.nanoTime() - sendStart));
+        }
+        Metrics.DOWNLOAD_COMPLETED.increment();
+        afterDownload(fileId, entry);
+    }
+
+    // content is the file from the hot cache, or null on a miss
+    private void send(HttpExchange exchange, FileRegistry.FileEntry entry, Path file, ByteBuffer content, List<long[]> ranges,
+                      long total, BandwidthScheduler.Transfer pace, long startNanos) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        HotFileCache cache = entry.isOneTime() ? null : hotCache;
+        boolean partial = ranges != null;
+        if (partial && ranges.size() > 1) {
+            sendByteRanges(exchange, file, content, ranges, total, pace, startNanos);
+            return;
+        }
+        long start = partial ? ranges.get(0)[0] : 0;
+        long end = partial ? ranges.get(0)[1] : total - 1;
+        long len = end - start + 1;
         if (partial) {
-            long len = end - start + 1;
             headers.add("Content-Range", "bytes " + start + "-" + end + "/" + total);
-            exchange.sendResponseHeaders(206, len);
-            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
-                 FileChannel ch = raf.getChannel();
-                 WritableByteChannel out = Channels.newChannel(exchange.getResponseBody())) {
-
-                long pos = start;
-                while (pos <= end) {
-                    long xfer = ch.transferTo(pos, (end - pos + 1), out);
-                    if (xfer <= 0) break;
-                    pos += xfer;
+        } else {
+            headers.add("Vary", "Accept-Encoding");
+            // Ranges always address the identity bytes, so only whole-file responses are compressed
+            String encoding = CompressedVariants.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            if (encoding != null && variants.isCompressible(file, total)) {
+                headers.set("Content-Encoding", encoding);
+                sendEncoded(exchange, file, total, encoding, !entry.isOneTime(), cache, pace, startNanos);
+                return;
+            }
+        }
+        if (content == null && cache != null) content = cache.admit(file.toString(), total);
+        // Full and ranged responses share one send path; only the status and headers differ
+        sendHeaders(exchange, partial ? 206 : 200, total == 0 ? -1 : len, startNanos);
+        if (content != null) {
+            try (OutputStream os = exchange.getResponseBody()) {
+                TransferUtils.transfer(content.slice((int) start, (int) len), os, transferWindow, pace);
+            }
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+             OutputStream os = exchange.getResponseBody()) {
+            TransferUtils.transfer(ch, start, len, os, transferWindow, pace);
+        }
+    }
+
+    // The socket peer, unless it is a trusted proxy: then X-Real-IP, or the nearest untrusted X-Forwarded-For hop
+    static String clientAddress(HttpExchange exchange, Set<String> trustedProxies) {
+        InetSocketAddress remote = exchange.getRemoteAddress();
+        String peer = remote == null || remote.getAddress() == null ? null : remote.getAddress().getHostAddress();
+        if (peer == null || !trustedProxies.contains(peer)) return peer;
+        Headers h = exchange.getRequestHeaders();
+        String realIp = h.getFirst("X-Real-IP");
+        if (realIp != null && !realIp.isBlank()) return realIp.trim();
+        String forwarded = h.getFirst("X-Forwarded-For");
+        if (forwarded != null) {
+            String[] hops = forwarded.split(",");
+            for (int i = hops.length - 1; i >= 0; i--) {
+                String hop = hops[i].trim();
+                if (!hop.isEmpty() && !trustedProxies.contains(hop)) return hop;
+            }
+        }
+        return peer;
+    }
+
+    /**
+     * How many parallel range requests a client should split this file into: one per
+     * {@code minSegmentBytes}, capped at {@code maxSegments}. One-time shares are consumed by the first
+     * completed request, so they always get 1.
+     */
+    private int recommendedSegments(long total, FileRegistry.FileEntry entry) {
+        if (entry.isOneTime() || maxSegments <= 1) return 1;
+        return (int) Math.max(1, Math.min(maxSegments, total / minSegmentBytes));
+    }
+
+    // multipart/byteranges: part headers go through the stream, part bodies through the zero-copy path
+    private void sendByteRanges(HttpExchange exchange, Path file, ByteBuffer content, List<long[]> ranges, long total,
+                                BandwidthScheduler.Transfer pace, long startNanos) throws IOException {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+        byte[][] partHeads = new byte[ranges.size()][];
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] r = ranges.get(i);
+            partHeads[i] = ("\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes "
+                    + r[0] + "-" + r[1] + "/" + total + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            length += partHeads[i].length + r[1] - r[0] + 1;
+        }
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        length += tail.length;
+
+        exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        sendHeaders(exchange, 206, length, startNanos);
+        if (content != null) {
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] r = ranges.get(i);
+                    os.write(partHeads[i]);
+                    TransferUtils.transfer(content.slice((int) r[0], (int) (r[1] - r[0] + 1)), os, transferWindow, pace);
                 }
+                os.write(tail);
             }
-        } else {
-            exchange.sendResponseHeaders(200, total);
-            try (FileInputStream fis = new FileInputStream(file);
-                 OutputStream os = exchange.getResponseBody()) {
-                byte[] buf = new byte[8192];
-                int n;
-                while ((n = fis.read(buf)) != -1) {
-                    os.write(buf, 0, n);
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+             OutputStream os = exchange.getResponseBody()) {
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] r = ranges.get(i);
+                os.write(partHeads[i]);
+                TransferUtils.transfer(ch, r[0], r[1] - r[0] + 1, os, transferWindow, pace);
+            }
+            os.write(tail);
+        }
+    }
+
+    // Serves the cached variant if there is one, from memory when it is hot, otherwise compresses on the
+    // fly and caches the result
+    private void sendEncoded(HttpExchange exchange, Path file, long total, String encoding, boolean cache,
+                             HotFileCache hotCache, BandwidthScheduler.Transfer pace, long startNanos) throws IOException {
+        Path variant = CompressedVariants.variantPath(file, encoding);
+        ByteBuffer hot = hotCache != null ? hotCache.get(variant.toString()) : null;
+        if (hot != null) {
+            sendHeaders(exchange, 200, hot.remaining(), startNanos);
+            try (OutputStream os = exchange.getResponseBody()) {
+                TransferUtils.transfer(hot, os, transferWindow, pace);
+            }
+            return;
+        }
+        FileChannel cached;
+        try {
+            cached = FileChannel.open(variant, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            cached = null;
+        }
+        if (cached != null) {
+            try (FileChannel ch = cached) {
+                long size = ch.size();
+                hot = hotCache != null ? hotCache.admit(variant.toString(), size) : null;
+                sendHeaders(exchange, 200, size, startNanos);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    if (hot != null) {
+                        TransferUtils.transfer(hot, os, transferWindow, pace);
+                    } else {
+                        TransferUtils.transfer(ch, 0, size, os, transferWindow, pace);
+                    }
                 }
             }
+            return;
         }
+        sendHeaders(exchange, 200, 0, startNanos);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+             OutputStream os = exchange.getResponseBody()) {
+            CompressedVariants.compress(ch, total, encoding, pace.pace(os), cache ? variant : null);
+        }
+        // The share may have been removed and its file deleted while we were compressing
+        if (cache && !Files.exists(file)) Files.deleteIfExists(variant);
+    }
 
-        entry.incrementDownloadCount();
+    // Time to first byte runs from the request arriving until the status line and headers are on the wire
+    private static void sendHeaders(HttpExchange exchange, int status, long length, long startNanos) throws IOException {
+        exchange.sendResponseHeaders(status, length);
+        exchange.getResponseBody().flush();
+        Metrics.DOWNLOAD_TTFB_US.recordMicrosSince(startNanos);
+    }
 
+    private void afterDownload(String fileId, FileRegistry.FileEntry entry) {
         if (entry.isOneTime()) {
             registry.removeFile(fileId);
             if (sseHub != null) sseHub.publish(fileId, "consumed", "{\"fileId\":\"" + fileId + "\"}");
@@ -111,6 +318,24 @@ public class DownloadService {
         }
     }
 
+    // Authorization: Bearer, X-Download-Token, or ?token= for plain links handed to download managers
+    private static String downloadToken(HttpExchange exchange) {
+        Headers h = exchange.getRequestHeaders();
+        String authorization = h.getFirst("Authorization");
+        if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return authorization.substring(7).trim();
+        }
+        String token = h.getFirst("X-Download-Token");
+        if (token != null) return token.trim();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith("token=")) return param.substring("token=".length());
+            }
+        }
+        return null;
+    }
+
     private void sendResponse(HttpExchange exchange, int statusCode, String message) throws IOException {
         exchange.sendResponseHeaders(statusCode, message.getBytes().length);
         try (OutputStream os = exchange.getResponseBody()) {
@@ -0,0 +1,58 @@
+package com.p2plink.services;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Share codes ordered by expiry deadline, bucketed per tick. {@link #pollDue} only touches buckets
+ * that are due, so the periodic sweep costs nothing while nothing expires, however many shares are live.
+ * Removed or replaced entries are not unlinked here; the caller re-checks each code it gets back.
+ */
+final class ExpiryIndex {
+
+    private static final class Bucket {
+        int[] codes = new int[4];
+        int size;
+        boolean drained;
+    }
+
+    private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<>();
+    private final long tickMillis;
+
+    ExpiryIndex(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    void add(int code, long expiresAt) {
+        // The first tick strictly after the deadline, so an entry is never handed out before it expires
+        long tick = Math.floorDiv(expiresAt, tickMillis) + 1;
+        while (true) {
+            Bucket b = buckets.computeIfAbsent(tick, k -> new Bucket());
+            synchronized (b) {
+                if (!b.drained) {
+                    if (b.size == b.codes.length) b.codes = Arrays.copyOf(b.codes, b.size * 2);
+                    b.codes[b.size++] = code;
+                    return;
+                }
+            }
+            // Raced with pollDue draining this tick; it is gone from the map, so the next round creates a new one
+        }
+    }
+
+    /** Removes every code whose tick has been reached at {@code now} and passes it to {@code action}. */
+    void pollDue(long now, IntConsumer action) {
+        long tick = Math.floorDiv(now, tickMillis);
+        Map.Entry<Long, Bucket> first;
+        while ((first = buckets.firstEntry()) != null && first.getKey() <= tick) {
+            Bucket b = first.getValue();
+            if (!buckets.remove(first.getKey(), b)) continue;
+            synchronized (b) {
+                b.drained = true;
+            }
+            // Drained buckets are never written again, so they can be read without the lock
+            for (int i = 0; i < b.size; i++) action.accept(b.codes[i]);
+        }
+    }
+}
@@ -1,25 +1,127 @@
 package com.p2plink.services;
 
+import com.p2plink.utils.Metrics;
 import org.mindrot.jbcrypt.BCrypt;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public class FileRegistry {
-    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
-    private final Random random = new Random();
+/**
+ * Share codes are six decimal digits, so the registry is a plain array indexed by the numeric code.
+ * Each live entry is a single immutable byte[] record (see {@link FileEntry#encode}), which is also its
+ * journal and snapshot form; {@link FileEntry} objects are only decoded views handed to callers.
+ *
+ * Several entries may share one stored file (content-addressed uploads), so files are reference
+ * counted by path and only deleted when the last entry pointing at them goes.
+ */
+public final class FileRegistry {
+    public static final int CODE_SPACE = 1_000_000;
 
-    public String registerFile(String filePath,String originalName,Long expiry,boolean oneTime,String passPhrase) {
-        String code;
-        do {
-            code = String.format("%06d", random.nextInt(1_000_000));
-        } while (files.containsKey(code)); // ensure uniqueness
+    private final AtomicReferenceArray<byte[]> entries = new AtomicReferenceArray<>(CODE_SPACE);
+    private final AtomicInteger size = new AtomicInteger();
+    // Null for a memory-only registry. Allocation, map changes and their journal records happen under
+    // writeLock, so a compaction sees the registry exactly as of the journal generation it closes. File
+    // moves and deletes and the journal fsync happen outside it.
+    private final RegistryJournal journal;
+    private final CodeAllocator codes = new CodeAllocator(CODE_SPACE);
+    private final Object writeLock = new Object();
+    private final Object compactLock = new Object();
+    // Deadline-ordered codes for cleanupExpired; the sweep is meant to run once per tick
+    public static final long EXPIRY_TICK_MILLIS = 1000;
+    private final ExpiryIndex expiryIndex = new ExpiryIndex(EXPIRY_TICK_MILLIS);
+    // Files of removed entries, deleted in batches by the registry-io thread instead of the caller
+    private final BlockingQueue<String> pendingDeletes = new LinkedBlockingQueue<>();
+    private volatile int bcryptCost = 10;
+    private volatile HotFileCache hotCache;
+    // Live entries per stored file. Taking the first reference and moving the file in, or deleting the
+    // file once no reference is left, happen under that path's stripe of fileLocks
+    private final Map<String, Integer> refs = new ConcurrentHashMap<>();
+    private final Object[] fileLocks = new Object[64];
+
+    {
+        for (int i = 0; i < fileLocks.length; i++) fileLocks[i] = new Object();
+    }
+
+    public FileRegistry() {
+        this.journal = null;
+        startDeleter();
+    }
+
+    /** A registry persisted under {@code dir}; entries from earlier runs are loaded before this returns. */
+    public FileRegistry(Path dir) throws IOException {
+        this.journal = new RegistryJournal(dir);
+        long start = System.nanoTime();
+        int[] expired = new int[1];
+        journal.load(new RegistryJournal.Sink() {
+            @Override
+            public void put(int code, byte[] record) {
+                entries.set(code, record);
+            }
+
+            @Override
+            public void remove(int code) {
+                entries.set(code, null);
+            }
+
+            @Override
+            public void expired(int code, byte[] record) {
+                entries.set(code, null);
+                pendingDeletes.add(FileEntry.filePathOf(record));
+                expired[0]++;
+            }
+        }, System.currentTimeMillis());
+        for (int code = 0; code < CODE_SPACE; code++) {
+            byte[] record = entries.get(code);
+            if (record == null) continue;
+            codes.reserve(code);
+            size.incrementAndGet();
+            refs.merge(FileEntry.filePathOf(record), 1, Integer::sum);
+        }
+        // Only now: files of expired entries queued above may still be shared with live ones
+        startDeleter();
+        System.out.printf("Registry loaded %d entries in %d ms, skipped %d expired%n",
+                size.get(), (System.nanoTime() - start) / 1_000_000, expired[0]);
+        // Lookups check expiry themselves, so the sweep index can be filled after startup
+        Thread.ofVirtual().name("registry-expiry-index").start(() -> {
+            for (int code = 0; code < CODE_SPACE; code++) {
+                byte[] record = entries.get(code);
+                if (record == null) continue;
+                long expiresAt = FileEntry.expiresAtOf(record);
+                if (expiresAt > 0) expiryIndex.add(code, expiresAt);
+            }
+        });
+        if (journal.replayedRecords() > 0) compact();
+    }
+
+    public String registerFile(String filePath,String originalName,Long expiry,boolean oneTime,String passPhrase) throws IOException {
+        return register(null, Path.of(filePath), originalName, expiry, oneTime, passPhrase);
+    }
+
+    /**
+     * Registers content stored at {@code object}, a content-addressed path. {@code source} is moved
+     * there, or just deleted when the same content is already stored, so a duplicate upload costs no
+     * disk space. The check and the new reference are atomic with respect to deletions of {@code object}.
+     */
+    public String registerContent(Path source, Path object, String originalName, Long expiry, boolean oneTime, String passPhrase) throws IOException {
+        return register(source, object, originalName, expiry, oneTime, passPhrase);
+    }
+
+    private String register(Path source, Path target, String originalName, Long expiry, boolean oneTime, String passPhrase) throws IOException {
+        String filePath = target.toString();
         long now = System.currentTimeMillis();
-        long size = new File(filePath).length();
         long expiryAt=0;
         if (expiry != null) {
             if (expiry > 0) expiryAt = now + expiry;
@@ -29,50 +131,249 @@ public class FileRegistry {
             expiryAt = now + 720000L;//2hour by Default Expiry
         }
         String passHash = (passPhrase != null && !passPhrase.isBlank())
-                ? BCrypt.hashpw(passPhrase, BCrypt.gensalt())
+                ? BCrypt.hashpw(passPhrase, BCrypt.gensalt(bcryptCost))
                 : null;
-        files.put(code, new FileEntry(filePath,originalName,size,now,expiryAt,oneTime,passHash));
-        return code;
+        // The reference is taken first, so the deleter leaves the file alone from here on
+        synchronized (fileLock(filePath)) {
+            int count = refs.merge(filePath, 1, Integer::sum);
+            if (source != null) {
+                try {
+                    if (count > 1 || Files.exists(target)) {
+                        Files.deleteIfExists(source);
+                    } else {
+                        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } catch (IOException e) {
+                    dropRef(filePath);
+                    throw e;
+                }
+            }
+        }
+        long size = new File(filePath).length();
+        byte[] record = FileEntry.encode(filePath, originalName, size, now, expiryAt, oneTime, passHash);
+        int code;
+        long seq = 0;
+        synchronized (writeLock) {
+            code = codes.allocate();
+            if (journal != null) {
+                try {
+                    seq = journal.appendPut(code, record);
+                } catch (IOException e) {
+                    codes.release(code);
+                    dropRef(filePath);
+                    throw e;
+                }
+            }
+            entries.set(code, record);
+            this.size.incrementAndGet();
+        }
+        if (journal != null) {
+            try {
+                journal.sync(seq);
+            } catch (IOException e) {
+                removeFile(formatCode(code));
+                throw e;
+            }
+        }
+        if (expiryAt > 0) expiryIndex.add(code, expiryAt);
+        return formatCode(code);
+    }
+
+    /** Cache whose copies of a file are dropped whenever a share of that file goes away. */
+    public void setHotFileCache(HotFileCache hotCache) {
+        this.hotCache = hotCache;
+    }
+
+    /** BCrypt work factor for new passphrases (4..31); each step doubles the cost of a check. */
+    public void setBcryptCost(int bcryptCost) {
+        if (bcryptCost < 4 || bcryptCost > 31) {
+            throw new IllegalArgumentException("BCrypt cost must be between 4 and 31: " + bcryptCost);
+        }
+        this.bcryptCost = bcryptCost;
     }
 
     public FileEntry getFile(String fileId) {
-        return files.get(fileId);
+        int code = parseCode(fileId);
+        if (code < 0) return null;
+        byte[] record = entries.get(code);
+        return record == null ? null : FileEntry.decode(record);
     }
+
     public boolean isExpired(FileEntry entry, long now) {
         return entry != null && entry.getExpiresAt() > 0 && now > entry.getExpiresAt();
     }
+
+    public int size() {
+        return size.get();
+    }
+
     public boolean removeFile(String fileId) {
-        FileEntry entry = files.remove(fileId);
-        if (entry == null) return false;
-        try {
-            Files.deleteIfExists(Path.of(entry.getFilePath()));
+        int code = parseCode(fileId);
+        if (code < 0) return false;
+        byte[] record;
+        long seq = 0;
+        synchronized (writeLock) {
+            record = entries.getAndSet(code, null);
+            if (record == null) return false;
+            size.decrementAndGet();
+            codes.release(code);
+            dropRef(FileEntry.filePathOf(record));
+            if (journal != null) {
+                try {
+                    seq = journal.appendRemove(code);
+                } catch (IOException e) {
+                    System.err.println("Registry journal write failed: " + e.getMessage());
+                }
+            }
         }
-        catch (Exception ignored) {
-            System.err.println("File not found: " + ignored.getMessage());
+        if (seq > 0) {
+            try {
+                journal.sync(seq);
+            } catch (IOException e) {
+                System.err.println("Registry journal sync failed: " + e.getMessage());
+            }
         }
+        invalidate(FileEntry.filePathOf(record));
         return true;
     }
+
+    /** Removes the entries that expired since the last call; only due entries are looked at. */
     public int cleanupExpired() {
-        int removed = 0;
+        int[] removed = new int[1];
         long now = System.currentTimeMillis();
-        for (Map.Entry<String, FileEntry> entry : files.entrySet()) {
-            if (isExpired(entry.getValue(), now)) {
+        expiryIndex.pollDue(now, code -> {
+            // The code may have been removed, or consumed and handed out again, since it was indexed
+            byte[] record = entries.get(code);
+            if (record == null || !FileEntry.isExpired(record, now)) return;
+            synchronized (writeLock) {
+                // No journal record needed: recovery skips entries that are past their expiry anyway
+                if (!entries.compareAndSet(code, record, null)) return;
+                size.decrementAndGet();
+                codes.release(code);
+                dropRef(FileEntry.filePathOf(record));
+            }
+            invalidate(FileEntry.filePathOf(record));
+            removed[0]++;
+            Metrics.REGISTRY_EXPIRED.increment();
+            Metrics.REGISTRY_EXPIRY_LAG_MS.record(now - FileEntry.expiresAtOf(record));
+        });
+        return removed[0];
+    }
+
+    /**
+     * Writes a snapshot of the live entries and drops the journals it covers. Appends continue on a
+     * fresh journal meanwhile; only the rotation and the copy of the record references hold the write lock.
+     */
+    public void compact() throws IOException {
+        if (journal == null) return;
+        synchronized (compactLock) {
+            long covers;
+            int count = 0;
+            int[] liveCodes;
+            byte[][] records;
+            synchronized (writeLock) {
+                covers = journal.rotate();
+                liveCodes = new int[size.get()];
+                records = new byte[liveCodes.length][];
+                for (int code = 0; code < CODE_SPACE && count < liveCodes.length; code++) {
+                    byte[] record = entries.get(code);
+                    if (record == null) continue;
+                    liveCodes[count] = code;
+                    records[count++] = record;
+                }
+            }
+            journal.writeSnapshot(covers, liveCodes, records, count, System.currentTimeMillis());
+        }
+    }
+
+    /** Compacts once the current journal has grown past {@code maxJournalBytes}. */
+    public boolean compactIfNeeded(long maxJournalBytes) throws IOException {
+        if (journal == null) return false;
+        long bytes;
+        synchronized (writeLock) {
+            bytes = journal.journalBytes();
+        }
+        if (bytes < maxJournalBytes) return false;
+        compact();
+        return true;
+    }
+
+    /** The numeric form of a six-digit share code, or -1 if {@code code} is not one. */
+    static int parseCode(String code) {
+        if (code == null || code.length() != 6) return -1;
+        int value = 0;
+        for (int i = 0; i < 6; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    static String formatCode(int code) {
+        char[] digits = new char[6];
+        for (int i = 5; i >= 0; i--) {
+            digits[i] = (char) ('0' + code % 10);
+            code /= 10;
+        }
+        return new String(digits);
+    }
+
+    private void invalidate(String path) {
+        HotFileCache cache = hotCache;
+        if (cache != null) cache.invalidate(path);
+    }
+
+    // The file is queued for deletion once no entry refers to it
+    private void dropRef(String path) {
+        Integer left = refs.computeIfPresent(path, (k, n) -> n > 1 ? n - 1 : null);
+        if (left == null) pendingDeletes.add(path);
+    }
+
+    private void startDeleter() {
+        Thread t = new Thread(() -> {
+            List<String> batch = new ArrayList<>();
+            while (true) {
                 try {
-                    Files.deleteIfExists(Path.of(entry.getValue().getFilePath()));
+                    batch.add(pendingDeletes.take());
+                } catch (InterruptedException e) {
+                    return;
                 }
-                catch (Exception ignored) {
-                    System.err.println("File not found: " + ignored.getMessage());
+                pendingDeletes.drainTo(batch, 1023);
+                for (String path : batch) {
+                    // Same content may have been registered again since the file was queued
+                    synchronized (fileLock(path)) {
+                        if (!refs.containsKey(path)) deleteQuietly(path);
+                    }
                 }
-                files.remove(entry.getKey());
-                removed++;
+                batch.clear();
             }
-        }
-        System.out.println("Number of Cleaned up expired files: " + removed);
-        return removed;
+        }, "registry-io");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private Object fileLock(String path) {
+        return fileLocks[(path.hashCode() & 0x7fffffff) % fileLocks.length];
     }
 
+    private static void deleteQuietly(String path) {
+        try {
+            Files.deleteIfExists(Path.of(path));
+            for (String suffix : CompressedVariants.SUFFIXES) Files.deleteIfExists(Path.of(path + suffix));
+        }
+        catch (Exception ignored) {
+            System.err.println("File not found: " + ignored.getMessage());
+        }
+    }
 
     public static class FileEntry {
+        // Compact record layout: [i64 fileSize][i64 createdAt][i64 expiresAt][u8 flags]
+        // [u16 pathLen][u16 nameLen][u16 hashLen][path][name][hash], strings in UTF-8
+        private static final int SIZE_AT = 0, CREATED_AT = 8, EXPIRES_AT = 16, FLAGS_AT = 24;
+        private static final int PATH_LEN_AT = 25, NAME_LEN_AT = 27, HASH_LEN_AT = 29, STRINGS_AT = 31;
+        private static final byte ONE_TIME = 1, HAS_PASS = 2;
+
         private final String filePath;
         private final String originalName;
         private final long fileSize;
@@ -80,7 +381,6 @@ public class FileRegistry {
         private final long expiresAt;
         private final boolean oneTime;
         private final String passHash;
-        private volatile long downloadCount = 0;
 
 
         public FileEntry(String filePath, String originalName, long fileSize, long createdAt, long expiresAt, boolean oneTime, String passHash) {
@@ -120,9 +420,51 @@ public class FileRegistry {
         public String getPassHash() {
             return passHash;
         }
-        public long incrementDownloadCount() {
-            return ++downloadCount;
+
+        static byte[] encode(String filePath, String originalName, long fileSize, long createdAt, long expiresAt,
+                             boolean oneTime, String passHash) {
+            byte[] path = filePath.getBytes(StandardCharsets.UTF_8);
+            byte[] name = originalName.getBytes(StandardCharsets.UTF_8);
+            byte[] hash = passHash == null ? new byte[0] : passHash.getBytes(StandardCharsets.UTF_8);
+            if (path.length > 0xffff || name.length > 0xffff || hash.length > 0xffff) {
+                throw new IllegalArgumentException("File path or name too long");
+            }
+            byte flags = (byte) ((oneTime ? ONE_TIME : 0) | (passHash != null ? HAS_PASS : 0));
+            return ByteBuffer.allocate(STRINGS_AT + path.length + name.length + hash.length)
+                    .putLong(fileSize).putLong(createdAt).putLong(expiresAt).put(flags)
+                    .putShort((short) path.length).putShort((short) name.length).putShort((short) hash.length)
+                    .put(path).put(name).put(hash)
+                    .array();
+        }
+
+        static FileEntry decode(byte[] record) {
+            ByteBuffer b = ByteBuffer.wrap(record);
+            int pathLen = b.getShort(PATH_LEN_AT) & 0xffff;
+            int nameLen = b.getShort(NAME_LEN_AT) & 0xffff;
+            int hashLen = b.getShort(HASH_LEN_AT) & 0xffff;
+            byte flags = b.get(FLAGS_AT);
+            return new FileEntry(
+                    new String(record, STRINGS_AT, pathLen, StandardCharsets.UTF_8),
+                    new String(record, STRINGS_AT + pathLen, nameLen, StandardCharsets.UTF_8),
+                    b.getLong(SIZE_AT), b.getLong(CREATED_AT), b.getLong(EXPIRES_AT),
+                    (flags & ONE_TIME) != 0,
+                    (flags & HAS_PASS) != 0
+                            ? new String(record, STRINGS_AT + pathLen + nameLen, hashLen, StandardCharsets.UTF_8)
+                            : null);
         }
 
+        static long expiresAtOf(byte[] record) {
+            return ByteBuffer.wrap(record).getLong(EXPIRES_AT);
+        }
+
+        static boolean isExpired(byte[] record, long now) {
+            long expiresAt = expiresAtOf(record);
+            return expiresAt > 0 && now > expiresAt;
+        }
+
+        static String filePathOf(byte[] record) {
+            int pathLen = ByteBuffer.wrap(record).getShort(PATH_LEN_AT) & 0xffff;
+            return new String(record, STRINGS_AT, pathLen, StandardCharsets.UTF_8);
+        }
     }
 }
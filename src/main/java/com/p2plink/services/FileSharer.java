@@ -5,59 +5,176 @@ import com.p2plink.utils.UploadUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Shares files over a single listening socket. A client connects and sends the share code, optionally
+ * followed by the offset to resume from; {@link FileSenderHandler} looks it up and sends that file. A
+ * share costs one map entry.
+ * Connections are served on virtual threads, at most {@code maxConcurrent} at a time; further clients
+ * wait in the accept backlog. Each file's checksum is computed in the background as soon as it is
+ * offered, one file at a time, so no transfer waits for a hash of the whole file.
+ */
 public class FileSharer {
 
-    private final Map<Integer, String> availableFiles;
-    private final Map<Integer, String> originalNames;
+    private final Map<Integer, Share> shares = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final ExecutorService hasher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "file-sharer-checksum");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile ServerSocketChannel serverChannel;
 
     public FileSharer() {
-        this.availableFiles = new ConcurrentHashMap<>();
-        this.originalNames = new ConcurrentHashMap<>();
+        this(256);
     }
 
-    public String getOriginalName(int port) {
-        String filePath = availableFiles.get(port);
-        if (filePath == null) return null;
-        return originalNames.getOrDefault(port, new File(filePath).getName());
+    public FileSharer(int maxConcurrent) {
+        this.permits = new Semaphore(maxConcurrent);
     }
 
+    private static final class Share {
+        final String filePath;
+        final String originalName;
+        // SHA-256 hex of the whole file; completes with null if the file could not be read
+        final CompletableFuture<String> checksum = new CompletableFuture<>();
+
+        Share(String filePath, String originalName) {
+            this.filePath = filePath;
+            this.originalName = originalName;
+        }
+    }
+
+    public String getOriginalName(int code) {
+        Share share = shares.get(code);
+        return share == null ? null : share.originalName;
+    }
+
+    public String getFilePath(int code) {
+        Share share = shares.get(code);
+        return share == null ? null : share.filePath;
+    }
+
+    /** Hex SHA-256 of the file shared under {@code code} if it has been computed yet, otherwise null. */
+    public String getChecksumIfReady(int code) {
+        Share share = shares.get(code);
+        return share == null ? null : share.checksum.getNow(null);
+    }
+
+    /** Waits for the checksum of the file shared under {@code code}; null if there is no such share or it failed. */
+    public String awaitChecksum(int code) {
+        Share share = shares.get(code);
+        if (share == null) return null;
+        try {
+            return share.checksum.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (ch.read(buffer) >= 0) {
+                digest.update(buffer.flip());
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /** Makes {@code filePath} available under a new share code and returns the code. */
     public int offerFile(String filePath, String originalName) {
+        Share share = new Share(filePath, originalName != null ? originalName : new File(filePath).getName());
         int retries = 50;
         while (retries-- > 0) {
-            int port = UploadUtils.generateCode();
-            if (!availableFiles.containsKey(port)) {
-                availableFiles.put(port, filePath);
-                originalNames.put(port, originalName);
-                return port;
+            int code = UploadUtils.generateCode();
+            if (shares.putIfAbsent(code, share) == null) {
+                hasher.execute(() -> {
+                    // Skipped if the share was stopped while queued
+                    if (shares.get(code) != share) {
+                        share.checksum.complete(null);
+                        return;
+                    }
+                    try {
+                        share.checksum.complete(sha256(Path.of(share.filePath)));
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Checksum of " + share.filePath + " failed: " + e.getMessage());
+                        share.checksum.complete(null);
+                    }
+                });
+                return code;
             }
         }
-        throw new IllegalStateException("Unable to allocate unique port for file sharing");
+        throw new IllegalStateException("Unable to allocate unique code for file sharing");
     }
 
-    public void startFileServer(int port) {
-        String filePath = availableFiles.get(port);
-        String originalName = originalNames.get(port);
-
-        if (filePath == null) {
-            System.err.println("No file mapped to port " + port);
-            return;
-        }
+    public boolean stopSharing(int code) {
+        return shares.remove(code) != null;
+    }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.printf("Serving file '%s' on port %d%n", new File(filePath).getName(), port);
+    public int sharedCount() {
+        return shares.size();
+    }
 
+    /** Serves every share on {@code port}; blocks until {@link #stop} is called or the socket fails. */
+    public void startFileServer(int port) {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            serverChannel = server;
+            System.out.printf("Sharing files on port %d%n", port);
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
-                new Thread(new FileSenderHandler(clientSocket, filePath, originalName)).start();
+                // Waiting here rather than after accept leaves excess clients in the kernel's backlog
+                permits.acquireUninterruptibly();
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    permits.release();
+                    throw e;
+                }
+                Thread.ofVirtual().name("file-sharer").start(() -> {
+                    try {
+                        new FileSenderHandler(client, this).run();
+                    } finally {
+                        permits.release();
+                    }
+                });
             }
         } catch (IOException e) {
+            if (serverChannel != null && !serverChannel.isOpen()) return;
             System.err.println("Error starting file server on port " + port + ": " + e.getMessage());
         }
     }
+
+    public void stop() throws IOException {
+        ServerSocketChannel server = serverChannel;
+        if (server != null) server.close();
+    }
 }
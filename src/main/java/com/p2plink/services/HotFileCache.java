@@ -0,0 +1,197 @@
+package com.p2plink.services;
+
+import com.p2plink.utils.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory copies of small, frequently downloaded files, so repeat downloads of a popular share are
+ * served without opening or reading anything. Content sits in direct buffers, bounded by total bytes.
+ *
+ * A file is loaded only once its recent access count reaches {@code admitFrequency}, and when room has
+ * to be made it must also be more popular than every entry it would push out (TinyLFU). Access counts
+ * live in a small count-min sketch that is halved periodically, so popularity fades. Entries are keyed
+ * by stored path, compressed variants included; the registry invalidates a path whenever a share of it
+ * is removed, consumed or expires.
+ */
+public final class HotFileCache {
+
+    // Eviction candidates are the least popular of this many entries, not of the whole cache
+    private static final int EVICTION_SAMPLE = 32;
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final int admitFrequency;
+    private final Map<String, ByteBuffer> entries = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final FrequencySketch sketch = new FrequencySketch(16);
+    // Bumped by every invalidation; a load that raced with one is served but not kept
+    private final AtomicLong epoch = new AtomicLong();
+    private final Object admitLock = new Object();
+    // Eviction sampling resumes where the last sample stopped, so over time every entry is a candidate;
+    // the map's iterators are weakly consistent and tolerate concurrent changes. Guarded by admitLock.
+    private Iterator<Map.Entry<String, ByteBuffer>> evictionCursor;
+
+    public HotFileCache(long maxBytes, long maxFileBytes, int admitFrequency) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxFileBytes = Math.min(Math.max(0, maxFileBytes), Integer.MAX_VALUE);
+        this.admitFrequency = Math.max(1, admitFrequency);
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** A read-only view of the cached content of {@code path}, or null on a miss. Counts the access either way. */
+    ByteBuffer get(String path) {
+        if (maxBytes == 0) return null;
+        sketch.increment(path.hashCode());
+        ByteBuffer content = entries.get(path);
+        if (content == null) {
+            Metrics.HOTCACHE_MISSES.increment();
+            return null;
+        }
+        Metrics.HOTCACHE_HITS.increment();
+        return content.duplicate();
+    }
+
+    /**
+     * After a miss on {@code path}: loads it if it is small and popular enough and returns the content,
+     * or returns null and leaves the file to be streamed from disk.
+     */
+    ByteBuffer admit(String path, long size) throws IOException {
+        if (size <= 0 || size > maxFileBytes || size > maxBytes) return null;
+        int frequency = sketch.frequency(path.hashCode());
+        if (frequency < admitFrequency) return null;
+
+        long seen = epoch.get();
+        ByteBuffer data;
+        try (FileChannel ch = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            if (ch.size() != size) return null;
+            data = ByteBuffer.allocateDirect((int) size);
+            while (data.hasRemaining()) {
+                if (ch.read(data, data.position()) < 0) return null;
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        ByteBuffer content = data.flip().asReadOnlyBuffer();
+
+        synchronized (admitLock) {
+            if (epoch.get() != seen) return content;
+            ByteBuffer existing = entries.get(path);
+            if (existing != null) return existing.duplicate();
+            if (usedBytes.get() + size > maxBytes && !evictFor(size, frequency)) return content;
+            entries.put(path, content);
+            usedBytes.addAndGet(size);
+        }
+        Metrics.HOTCACHE_ADMITTED.increment();
+        return content.duplicate();
+    }
+
+    // admitLock held. Frees room by dropping sampled entries less popular than the newcomer, or drops nothing
+    private boolean evictFor(long size, int frequency) {
+        List<Map.Entry<String, ByteBuffer>> sample = new ArrayList<>(EVICTION_SAMPLE);
+        int limit = Math.min(EVICTION_SAMPLE, entries.size());
+        boolean restarted = false;
+        while (sample.size() < limit) {
+            if (evictionCursor == null || !evictionCursor.hasNext()) {
+                if (restarted) break; // fewer entries left than counted
+                evictionCursor = entries.entrySet().iterator();
+                restarted = true;
+                continue;
+            }
+            sample.add(evictionCursor.next());
+        }
+        sample.sort((a, b) -> Integer.compare(sketch.frequency(a.getKey().hashCode()), sketch.frequency(b.getKey().hashCode())));
+        long needed = usedBytes.get() + size - maxBytes;
+        int victims = 0;
+        for (Map.Entry<String, ByteBuffer> e : sample) {
+            if (needed <= 0) break;
+            if (sketch.frequency(e.getKey().hashCode()) >= frequency) return false;
+            needed -= e.getValue().capacity();
+            victims++;
+        }
+        if (needed > 0) return false;
+        for (int i = 0; i < victims; i++) {
+            ByteBuffer removed = entries.remove(sample.get(i).getKey());
+            if (removed != null) usedBytes.addAndGet(-removed.capacity());
+            Metrics.HOTCACHE_EVICTED.increment();
+        }
+        return true;
+    }
+
+    /** Drops {@code path} and its compressed variants. */
+    void invalidate(String path) {
+        if (maxBytes == 0) return;
+        epoch.incrementAndGet();
+        drop(path);
+        for (String suffix : CompressedVariants.SUFFIXES) drop(path + suffix);
+    }
+
+    private void drop(String path) {
+        ByteBuffer removed = entries.remove(path);
+        if (removed != null) usedBytes.addAndGet(-removed.capacity());
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four rows of {@code 2^bits}. Updates are unsynchronized, so
+     * concurrent ones may be lost; that only makes an estimate a little low. Every {@code 10 * width}
+     * increments all counters are halved.
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+        private static final int MAX = 15;
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int shift;
+        private final int resetAt;
+        private final AtomicInteger additions = new AtomicInteger();
+
+        FrequencySketch(int bits) {
+            for (int i = 0; i < rows.length; i++) rows[i] = new byte[1 << bits];
+            this.shift = 32 - bits;
+            this.resetAt = 10 << bits;
+        }
+
+        void increment(int hash) {
+            for (int i = 0; i < rows.length; i++) {
+                byte[] row = rows[i];
+                int slot = (hash * SEEDS[i]) >>> shift;
+                if (row[slot] < MAX) row[slot]++;
+            }
+            if (additions.incrementAndGet() >= resetAt) reset();
+        }
+
+        int frequency(int hash) {
+            int min = MAX;
+            for (int i = 0; i < rows.length; i++) {
+                min = Math.min(min, rows[i][(hash * SEEDS[i]) >>> shift]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            if (additions.getAndSet(0) < resetAt) return;
+            for (byte[] row : rows) {
+                for (int j = 0; j < row.length; j++) row[j] >>= 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.p2plink.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * On-disk form of {@link FileRegistry}: a compacted snapshot of the live entries plus append-only
+ * journals of the changes made since. Journals are numbered; a snapshot records the last generation
+ * it covers, so recovery maps the snapshot, replays only newer journals and never sees a change twice.
+ *
+ * Every file starts with {@code [i32 magic][u8 version][i64 generation]} followed by records
+ * {@code [i32 length][u8 type][payload][i32 crc32c of type and payload]}. A PUT payload is the share
+ * code followed by the entry's compact record exactly as the registry holds it in memory, so loading
+ * copies bytes instead of decoding fields. A torn record at the end of the newest journal (crash
+ * mid-append) is cut off on recovery.
+ */
+final class RegistryJournal {
+
+    private static final int MAGIC = 0x50324C52; // "P2LR"
+    private static final byte VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final byte PUT = 1, REMOVE = 2;
+    private static final String SNAPSHOT = "registry.snapshot";
+    private static final String JOURNAL_PREFIX = "registry.journal.";
+
+    /** Receives the entries rebuilt by {@link #load}. */
+    interface Sink {
+        void put(int code, byte[] record);
+
+        void remove(int code);
+
+        /** An entry that had already expired; its file is left for the caller to delete. */
+        void expired(int code, byte[] record);
+    }
+
+    private final Path dir;
+    private FileChannel journal;
+    private long generation;
+    private long journalBytes;
+    private long replayed;
+    // Records written so far and records known to be on disk; see sync
+    private volatile long appended;
+    private long synced;
+    private final Object syncLock = new Object();
+
+    RegistryJournal(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+    }
+
+    /** Rebuilds the registry from disk into {@code sink} and opens a fresh journal for appends. */
+    void load(Sink sink, long now) throws IOException {
+        long covered = -1;
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            covered = replay(snapshot, sink, now, false);
+        }
+        long last = covered;
+        for (Path p : journalFiles()) {
+            long gen = generationOf(p);
+            if (gen <= covered || Files.size(p) < HEADER_SIZE) {
+                // Left behind by a compaction that crashed after its snapshot, or created just before a crash
+                Files.deleteIfExists(p);
+                continue;
+            }
+            long before = replayed;
+            replay(p, sink, now, true);
+            if (replayed == before) Files.delete(p); // nothing to keep; the new journal takes over
+            last = gen;
+        }
+        generation = last + 1;
+        openJournal();
+    }
+
+    /** Number of journal records replayed by {@link #load}, i.e. work a compaction would save next time. */
+    long replayedRecords() {
+        return replayed;
+    }
+
+    long journalBytes() {
+        return journalBytes;
+    }
+
+    /** Writes a PUT record and returns its sequence number; it is durable once {@link #sync} has returned for it. */
+    long appendPut(int code, byte[] record) throws IOException {
+        return append(frame(PUT, code, record));
+    }
+
+    long appendRemove(int code) throws IOException {
+        return append(frame(REMOVE, code, null));
+    }
+
+    /**
+     * Forces the journal up to at least record {@code seq}. Call it without holding the registry's write
+     * lock: appenders that arrive while one force is running wait for it, and the next force covers all
+     * of them, so concurrent registrations share fsyncs instead of paying one each.
+     */
+    void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= seq) return;
+            long upTo = appended;
+            journal.force(false);
+            synced = upTo;
+        }
+    }
+
+    /**
+     * Switches appends to a new journal generation and returns the one just closed. Call it while no
+     * append can run, together with copying the entries that the snapshot for that generation will hold.
+     */
+    long rotate() throws IOException {
+        synchronized (syncLock) {
+            journal.force(false);
+            journal.close();
+            synced = appended;
+            long closed = generation++;
+            openJournal();
+            return closed;
+        }
+    }
+
+    /**
+     * Writes a snapshot covering journals up to {@code covers} and deletes them. {@code codes} and
+     * {@code records} are parallel; expired entries are left out.
+     */
+    void writeSnapshot(long covers, int[] codes, byte[][] records, int count, long now) throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+            buf.putInt(MAGIC).put(VERSION).putLong(covers);
+            for (int i = 0; i < count; i++) {
+                if (FileRegistry.FileEntry.isExpired(records[i], now)) continue;
+                ByteBuffer record = frame(PUT, codes[i], records[i]);
+                if (buf.remaining() < record.remaining()) {
+                    writeFully(out, buf.flip());
+                    buf.clear();
+                }
+                if (buf.remaining() < record.remaining()) {
+                    writeFully(out, record);
+                } else {
+                    buf.put(record);
+                }
+            }
+            writeFully(out, buf.flip());
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (Path p : journalFiles()) {
+            if (generationOf(p) <= covers) Files.deleteIfExists(p);
+        }
+    }
+
+    void close() throws IOException {
+        synchronized (syncLock) {
+            if (journal == null) return;
+            journal.force(false);
+            journal.close();
+        }
+    }
+
+    // Called under the registry's write lock, which orders records; the fsync is left to sync
+    private long append(ByteBuffer record) throws IOException {
+        journalBytes += record.remaining();
+        writeFully(journal, record);
+        return ++appended;
+    }
+
+    private static ByteBuffer frame(byte type, int code, byte[] entry) {
+        int length = 4 + (entry == null ? 0 : entry.length);
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + length + 4);
+        record.putInt(length).put(type).putInt(code);
+        if (entry != null) record.put(entry);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 4, 1 + length);
+        return record.putInt((int) crc.getValue()).flip();
+    }
+
+    private void openJournal() throws IOException {
+        Path p = dir.resolve(JOURNAL_PREFIX + generation);
+        journal = FileChannel.open(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put(VERSION).putLong(generation).flip();
+        writeFully(journal, header);
+        journal.force(true);
+        journalBytes = HEADER_SIZE;
+    }
+
+    // Returns the generation recorded in the file header
+    private long replay(Path file, Sink sink, long now, boolean isJournal) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Registry file too large to map: " + file);
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_SIZE || map.getInt() != MAGIC) {
+                throw new IOException("Not a registry file: " + file);
+            }
+            byte version = map.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported registry format version " + version + " in " + file);
+            }
+            long gen = map.getLong();
+            CRC32C crc = new CRC32C();
+            while (map.remaining() > 0) {
+                int start = map.position();
+                if (map.remaining() < 4 + 1 + 4 + 4) break;
+                int length = map.getInt();
+                if (length < 4 || map.remaining() < 1 + length + 4) {
+                    map.position(start);
+                    break;
+                }
+                crc.reset();
+                crc.update(map.slice(start + 4, 1 + length));
+                if ((int) crc.getValue() != map.getInt(start + 4 + 1 + length)) {
+                    map.position(start);
+                    break;
+                }
+                byte type = map.get();
+                int code = map.getInt();
+                if (type == REMOVE) {
+                    sink.remove(code);
+                } else {
+                    byte[] entry = new byte[length - 4];
+                    map.get(entry);
+                    if (FileRegistry.FileEntry.isExpired(entry, now)) {
+                        sink.expired(code, entry);
+                    } else {
+                        sink.put(code, entry);
+                    }
+                }
+                map.position(start + 4 + 1 + length + 4);
+                if (isJournal) replayed++;
+            }
+            if (map.remaining() > 0) {
+                if (!isJournal) throw new IOException("Corrupt registry snapshot at byte " + map.position());
+                System.err.println("Registry journal " + file.getFileName() + " truncated at byte " + map.position());
+                ch.truncate(map.position());
+            }
+            return gen;
+        }
+    }
+
+    private List<Path> journalFiles() throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.filter(p -> p.getFileName().toString().startsWith(JOURNAL_PREFIX))
+                    .sorted((a, b) -> Long.compare(generationOf(a), generationOf(b)))
+                    .toList();
+        }
+    }
+
+    private static long generationOf(Path p) {
+        try {
+            return Long.parseLong(p.getFileName().toString().substring(JOURNAL_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+}
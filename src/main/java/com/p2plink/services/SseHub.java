@@ -1,82 +1,367 @@
 package com.p2plink.services;
 
+import com.p2plink.utils.Metrics;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.sql.ClientInfoStatus;
+import java.util.ArrayDeque;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Server-sent event fan-out. {@link #publish} only appends to each subscriber's bounded queue; the
+ * actual socket writes run on the dispatcher executor, one drain task per subscriber with pending
+ * events, which writes the whole backlog as one batch and flushes once. Upload and download threads
+ * therefore never wait on a browser.
+ *
+ * Every published event carries a monotonically increasing {@code id:} and is kept in a small
+ * per-file ring buffer, so a client that reconnects with {@code Last-Event-ID} is sent only the
+ * events it missed instead of starting over.
+ */
 public class SseHub {
-    private final Map<String, CopyOnWriteArrayList<Client>> byFileId = new ConcurrentHashMap<>();
 
+    /** What to do when a subscriber's queue is full. */
+    public enum SlowConsumerPolicy {
+        /** Drop the subscriber; EventSource clients reconnect on their own. */
+        DISCONNECT,
+        /** Discard the oldest queued event to make room. */
+        DROP_OLDEST
+    }
+
+    private static final byte[] KEEPALIVE = ":keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final long IDLE_TOPIC_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final Map<String, Topic> byFileId = new ConcurrentHashMap<>();
+    // Reverse index, so dropping a subscriber does not scan every file
+    private final Map<HttpExchange, Client> byExchange = new ConcurrentHashMap<>();
+    private final AtomicLong nextEventId = new AtomicLong(1);
+    private final int queueCapacity;
+    private final SlowConsumerPolicy policy;
+    private final Executor dispatcher;
+    private final int replaySize;
+
+    // Latest upload progress per file, held back until the rate limit lets it through
+    private final Map<String, Progress> progress = new ConcurrentHashMap<>();
+    private volatile long progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(250);
+    private volatile long progressStepBasisPoints = 100;
 
-    private static class Client{
+    public SseHub() {
+        this(256, SlowConsumerPolicy.DISCONNECT, Executors.newVirtualThreadPerTaskExecutor(), 64);
+    }
+
+    public SseHub(int queueCapacity, SlowConsumerPolicy policy, Executor dispatcher, int replaySize) {
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        this.dispatcher = dispatcher;
+        this.replaySize = Math.max(0, replaySize);
+    }
+
+    /**
+     * Upload progress events are coalesced per file: at most one every {@code minIntervalMillis},
+     * unless progress moved by at least {@code minStepPercent} since the last one. The final 100% event
+     * and every other event type are always delivered.
+     */
+    public void setProgressLimits(long minIntervalMillis, int minStepPercent) {
+        this.progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        this.progressStepBasisPoints = minStepPercent * 100L;
+    }
+
+    private static final class Progress {
+        long uploaded;
+        long total;
+        long lastSentAt;
+        long lastSentBasisPoints = -1;
+        boolean pending;
+        // Set once the upload's terminal event is published; reports still in flight are dropped
+        boolean closed;
+    }
+
+    /**
+     * Subscribers and recent events of one file. Numbering, buffering and fan-out of an event happen
+     * under the topic lock, so a resuming subscriber sees each event exactly once: either replayed
+     * from the ring or delivered live.
+     */
+    private final class Topic {
+        final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<>();
+        final long[] ids = new long[replaySize];
+        final byte[][] frames = new byte[replaySize][];
+        int head;
+        int size;
+        boolean retired;
+        volatile long lastPublish = System.nanoTime();
+
+        synchronized void publish(byte[] body) {
+            long id = nextEventId.getAndIncrement();
+            byte[] prefix = ("id: " + id + "\n").getBytes(StandardCharsets.US_ASCII);
+            byte[] frame = new byte[prefix.length + body.length];
+            System.arraycopy(prefix, 0, frame, 0, prefix.length);
+            System.arraycopy(body, 0, frame, prefix.length, body.length);
+            if (replaySize > 0) {
+                int slot = (head + size) % replaySize;
+                ids[slot] = id;
+                frames[slot] = frame;
+                if (size < replaySize) size++;
+                else head = (head + 1) % replaySize;
+            }
+            lastPublish = System.nanoTime();
+            Metrics.SSE_EVENTS.increment();
+            for (Client c : clients) {
+                if (c.open) c.offer(frame);
+            }
+            clients.removeIf(c -> !c.open);
+        }
+
+        synchronized boolean subscribe(Client client, byte[] hello, long lastEventId) {
+            if (retired) return false;
+            client.offer(hello);
+            if (lastEventId >= 0) {
+                for (int i = 0; i < size; i++) {
+                    int slot = (head + i) % replaySize;
+                    if (ids[slot] > lastEventId) client.offer(frames[slot]);
+                }
+            }
+            clients.add(client);
+            return true;
+        }
+
+        synchronized boolean retireIfIdle(long now) {
+            clients.removeIf(c -> !c.open);
+            retired = clients.isEmpty() && now - lastPublish >= IDLE_TOPIC_NANOS;
+            return retired;
+        }
+    }
+
+    private class Client implements Runnable {
 
         final HttpExchange exchange;
+        final Topic topic;
         final OutputStream os;
+        final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
         volatile boolean open = true;
-        Client(HttpExchange ex) throws IOException {
+        Client(HttpExchange ex, Topic topic) throws IOException {
             this.exchange = ex;
+            this.topic = topic;
             this.os = ex.getResponseBody();
         }
 
+        void offer(byte[] payload) {
+            synchronized (queue) {
+                if (queue.size() >= queueCapacity) {
+                    if (policy == SlowConsumerPolicy.DISCONNECT) {
+                        if (open) Metrics.SSE_DISCONNECTED.increment();
+                        queue.clear();
+                        open = false;
+                    } else {
+                        queue.poll();
+                        Metrics.SSE_DROPPED.increment();
+                    }
+                }
+                if (open) {
+                    queue.add(payload);
+                    Metrics.SSE_QUEUE_DEPTH.record(queue.size());
+                }
+            }
+            // A disconnected client is also scheduled, so the exchange is closed off the publisher's thread
+            schedule();
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                dispatcher.execute(this);
+            }
+        }
+
+        // Drain task: write everything queued as one batch, flush once
+        @Override
+        public void run() {
+            try {
+                byte[] batch;
+                synchronized (queue) {
+                    batch = drain();
+                }
+                if (open && batch != null) {
+                    try {
+                        os.write(batch);
+                        os.flush();
+                    } catch (IOException e) {
+                        open = false;
+                    }
+                }
+                if (!open) {
+                    byExchange.remove(exchange, this);
+                    topic.clients.remove(this);
+                    try { exchange.close(); } catch (Exception ignored) {}
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            boolean more;
+            synchronized (queue) {
+                more = open && !queue.isEmpty();
+            }
+            if (more) schedule();
+        }
+
+        private byte[] drain() {
+            if (queue.isEmpty()) return null;
+            if (queue.size() == 1) return queue.poll();
+            int len = 0;
+            for (byte[] b : queue) len += b.length;
+            byte[] batch = new byte[len];
+            int pos = 0;
+            byte[] b;
+            while ((b = queue.poll()) != null) {
+                System.arraycopy(b, 0, batch, pos, b.length);
+                pos += b.length;
+            }
+            return batch;
+        }
     }
     public void subscribe(String fileId, HttpExchange exchange) throws IOException {
-        byFileId.computeIfAbsent(fileId, k -> new CopyOnWriteArrayList<>()).add(new Client(exchange));
-        publish(fileId, "hello", "{\"ok\":true}");//Dummy Data
+        subscribe(fileId, exchange, -1);
+    }
 
+    /** Subscribes and first replays buffered events newer than {@code lastEventId} (-1 for none). */
+    public void subscribe(String fileId, HttpExchange exchange, long lastEventId) throws IOException {
+        byte[] hello = format("hello", "{\"ok\":true}");//Dummy Data
+        Client client;
+        do {
+            // A topic retired by the heartbeat sweep in the meantime is replaced
+            Topic topic = byFileId.computeIfAbsent(fileId, k -> new Topic());
+            client = new Client(exchange, topic);
+        } while (!client.topic.subscribe(client, hello, lastEventId));
+        byExchange.put(exchange, client);
+    }
 
+    public int subscriberCount() {
+        return byExchange.size();
     }
 
     public void unsubscribeAll(HttpExchange exchange) {
-        for (var list : byFileId.values()) {
-            list.removeIf(c -> c.exchange == exchange);
+        Client c = byExchange.remove(exchange);
+        if (c != null) {
+            c.topic.clients.remove(c);
         }
     }
 
     public void publish(String fileId, String event, String jsonData) {
-        var list = byFileId.get(fileId);
-        if (list == null) {
-            return;
+        // Anything still held back goes out first, so a terminal event is never followed by stale progress
+        Progress p = progress.remove(fileId);
+        if (p != null) {
+            synchronized (p) {
+                if (p.pending) sendProgress(fileId, p, System.nanoTime());
+            }
         }
+        deliver(fileId, format(event, jsonData));
+    }
 
-        byte[] payload = format(event, jsonData);
+    /**
+     * Publishes the event that ends an upload, such as {@code completed}. Progress still held back is
+     * stale by then and is dropped rather than sent, as are reports that race with this call; callers
+     * must not report progress for the upload afterwards.
+     */
+    public void publishFinal(String fileId, String event, String jsonData) {
+        Progress p = progress.remove(fileId);
+        if (p != null) {
+            synchronized (p) {
+                p.closed = true;
+                p.pending = false;
+            }
+        }
+        deliver(fileId, format(event, jsonData));
+    }
 
-        for (Client c : list) {
-            if (!c.open) continue;
-            try {
-                c.os.write(payload);
-                c.os.flush();
-            } catch (IOException e) {
-                c.open = false;
-                try { c.exchange.close(); } catch (Exception ignored) {}
+    public void publishProgress(String fileId, long uploaded, long total) {
+        if (!byFileId.containsKey(fileId)) {
+            return;
+        }
+        Progress p = progress.computeIfAbsent(fileId, k -> new Progress());
+        boolean done = uploaded >= total;
+        synchronized (p) {
+            if (p.closed) return;
+            // Concurrent chunks may report out of order; progress never goes backwards
+            p.uploaded = Math.max(p.uploaded, uploaded);
+            p.total = total;
+            long now = System.nanoTime();
+            if (done
+                    || now - p.lastSentAt >= progressIntervalNanos
+                    || basisPoints(p.uploaded, total) - p.lastSentBasisPoints >= progressStepBasisPoints) {
+                sendProgress(fileId, p, now);
+            } else {
+                p.pending = true;
             }
         }
-        list.removeIf(c -> !c.open);
+        if (done) progress.remove(fileId, p);
+    }
+
+    /** Sends progress that was held back longer than the interval; idle entries are dropped. */
+    public ScheduledFuture<?> startProgressFlusher(ScheduledExecutorService ses) {
+        long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(progressIntervalNanos));
+        return ses.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            for (var e : progress.entrySet()) {
+                Progress p = e.getValue();
+                synchronized (p) {
+                    if (p.pending && now - p.lastSentAt >= progressIntervalNanos) {
+                        sendProgress(e.getKey(), p, now);
+                    } else if (!p.pending && now - p.lastSentAt >= TimeUnit.MINUTES.toNanos(1)) {
+                        progress.remove(e.getKey(), p);
+                    }
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Called with p locked, so events of one file are queued in order
+    private void sendProgress(String fileId, Progress p, long now) {
+        long bp = basisPoints(p.uploaded, p.total);
+        StringBuilder sb = new StringBuilder(96)
+                .append("event: progress\ndata: {\"uploaded\":").append(p.uploaded)
+                .append(",\"total\":").append(p.total)
+                .append(",\"percent\":").append(bp / 100).append('.');
+        long frac = bp % 100;
+        if (frac < 10) sb.append('0');
+        sb.append(frac).append("}\n\n");
+        p.lastSentAt = now;
+        p.lastSentBasisPoints = bp;
+        p.pending = false;
+        deliver(fileId, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long basisPoints(long uploaded, long total) {
+        if (total <= 0 || uploaded >= total) return 10_000;
+        return uploaded * 10_000 / total;
+    }
+
+    private void deliver(String fileId, byte[] payload) {
+        Topic topic = byFileId.get(fileId);
+        if (topic == null) {
+            return;
+        }
+        topic.publish(payload);
     }
+
     private byte[] format(String event, String json) {
         String s = "event: " + event + "\n" + "data: " + json + "\n\n";
         return s.getBytes(StandardCharsets.UTF_8);
     }
     public ScheduledFuture<?> startHeartbeats(ScheduledExecutorService ses) {
         return ses.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
             for (var e : byFileId.entrySet()) {
-                var list = e.getValue();
-                if (list == null || list.isEmpty()) continue;
-                for (Client c : list) {
+                Topic topic = e.getValue();
+                for (Client c : topic.clients) {
                     if (!c.open) continue;
-                    try {
-                        c.os.write(":keepalive\n\n".getBytes(StandardCharsets.UTF_8));
-                        c.os.flush();
-                    } catch (IOException ex) {
-                        c.open = false;
-                        try { c.exchange.close(); } catch (Exception ignored) {}
-                    }
+                    c.offer(KEEPALIVE);
                 }
-                list.removeIf(cl -> !cl.open);
+                // Files nobody has listened to or published for a while lose their replay buffer
+                if (topic.retireIfIdle(now)) byFileId.remove(e.getKey(), topic);
             }
         }, 15, 15, TimeUnit.SECONDS);
     }
@@ -1,59 +1,600 @@
 package com.p2plink.services;
 
+import com.p2plink.parser.Multiparser;
+import com.p2plink.utils.Metrics;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class UploadService {
 
-    private final Path uploadDir = Paths.get("uploads");
+    private static final int JOURNAL_MAGIC = 0x50324C55; // "P2LU"
+    // v2 adds a flags byte to the header and the chunk length to each record; v1 journals are still read
+    private static final byte JOURNAL_VERSION = 2;
+    private static final byte FLAG_LEGACY = 1;
+
+    private final Path uploadDir;
+    // Finished uploads are stored once per distinct content, as objects/<2 hex>/<sha-256 hex>
+    private final Path objectDir;
     private final FileRegistry registry;
     private final SseHub sseHub;
+    private final SecureRandom random = new SecureRandom();
+    private volatile long maxUploadBytes;
 
-    // Track upload progress by fileName
-    private final ConcurrentHashMap<String, AtomicLong> uploadedBytesMap = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, Long> totalSizeMap = new ConcurrentHashMap<>();
+    // In-flight uploads by session id; legacy clients without a session are mapped by legacyKey
+    private final ConcurrentHashMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> legacySessions = new ConcurrentHashMap<>();
+    // A legacy client cannot say whether it is resuming, so an idle session is not joined past this
+    private static final long LEGACY_RESUME_MILLIS = 10 * 60 * 1000;
 
     public UploadService(FileRegistry registry, SseHub sseHub) {
+        this(registry, sseHub, Paths.get("uploads"));
+    }
+
+    /** Keeps part files, journals and stored objects under {@code uploadDir}. */
+    public UploadService(FileRegistry registry, SseHub sseHub, Path uploadDir) {
         this.registry = registry;
         this.sseHub = sseHub;
+        this.uploadDir = uploadDir;
+        this.objectDir = uploadDir.resolve("objects");
         try {
             Files.createDirectories(uploadDir);
         } catch (IOException e) {
             throw new RuntimeException("Failed to create upload dir", e);
         }
+        recoverSessions();
     }
 
-    public void saveChunk(String fileName, int chunkIndex, int totalChunks, long totalSize, InputStream in) throws IOException {
-        Path partFile = uploadDir.resolve(fileName + ".part");
-        totalSizeMap.putIfAbsent(fileName, totalSize);
+    /** An upload larger than {@link #setMaxUploadBytes}; answered with 413. */
+    public static class UploadTooLargeException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        public UploadTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /** Largest file, or multipart request body, accepted; 0 for no limit. */
+    public void setMaxUploadBytes(long maxUploadBytes) {
+        this.maxUploadBytes = Math.max(0, maxUploadBytes);
+    }
 
+    /**
+     * An upload in progress. Every received chunk is appended to a small journal next to the part file
+     * (fixed header, then index and length per chunk), so the bitmap can be rebuilt after a restart.
+     */
+    public static class UploadSession {
+        private final String sessionId;
+        private final String fileName;
+        private final long totalSize;
+        private final int totalChunks;
+        private final long chunkSize;
+        private final Path partFile;
+        private final Path journalFile;
+        private final FileChannel channel;
+        private final FileChannel journal;
+        private final BitSet received;
+        private long uploadedBytes;
+        private boolean completed;
+        // SHA-256 of the contiguous prefix [0, hashedBytes); only touched with hashLock held
+        private final ReentrantLock hashLock = new ReentrantLock();
+        private final AtomicBoolean hashWanted = new AtomicBoolean();
+        private MessageDigest digest = sha256();
+        private long hashedBytes;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private UploadSession(String sessionId, String fileName, long totalSize, int totalChunks, long chunkSize,
+                              Path partFile, Path journalFile, FileChannel channel, FileChannel journal, BitSet received) {
+            this.sessionId = sessionId;
+            this.fileName = fileName;
+            this.totalSize = totalSize;
+            this.totalChunks = totalChunks;
+            this.chunkSize = chunkSize;
+            this.partFile = partFile;
+            this.journalFile = journalFile;
+            this.channel = channel;
+            this.journal = journal;
+            this.received = received;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getTotalSize() {
+            return totalSize;
+        }
+
+        public int getTotalChunks() {
+            return totalChunks;
+        }
+
+        public long getChunkSize() {
+            return chunkSize;
+        }
+
+        public synchronized long getUploadedBytes() {
+            return uploadedBytes;
+        }
+
+        public synchronized boolean isComplete() {
+            return received.cardinality() == totalChunks;
+        }
+
+        /** Inclusive [first, last] chunk index ranges that still have to be sent. */
+        public synchronized List<int[]> getMissingChunks() {
+            List<int[]> missing = new ArrayList<>();
+            int from = received.nextClearBit(0);
+            while (from < totalChunks) {
+                int to = received.nextSetBit(from);
+                if (to < 0 || to > totalChunks) to = totalChunks;
+                missing.add(new int[]{from, to - 1});
+                from = received.nextClearBit(to);
+            }
+            return missing;
+        }
+
+        private void close() {
+            try { channel.close(); } catch (IOException ignored) {}
+            try { journal.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public UploadSession createSession(String fileName, long totalSize, int totalChunks, long chunkSize) throws IOException {
+        return createSession(fileName, totalSize, totalChunks, chunkSize, false);
+    }
+
+    private UploadSession createSession(String fileName, long totalSize, int totalChunks, long chunkSize, boolean legacy) throws IOException {
+        if (totalSize < 0 || totalChunks <= 0 || chunkSize < 0) {
+            throw new IllegalArgumentException("Invalid upload size " + totalSize + " in " + totalChunks + " chunks");
+        }
+        long max = maxUploadBytes;
+        if (max > 0 && totalSize > max) {
+            throw new UploadTooLargeException("Upload of " + totalSize + " bytes exceeds the limit of " + max);
+        }
+        String safeName = sanitize(fileName);
+        byte[] id = new byte[16];
+        random.nextBytes(id);
+        String sessionId = HexFormat.of().formatHex(id);
+        Path partFile = uploadDir.resolve(sessionId + ".part");
+        Path journalFile = uploadDir.resolve(sessionId + ".journal");
+
+        FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        byte[] name = safeName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 1 + 8 + 4 + 8 + 2 + name.length);
+        header.putInt(JOURNAL_MAGIC).put(JOURNAL_VERSION).put(legacy ? FLAG_LEGACY : 0)
+                .putLong(totalSize).putInt(totalChunks).putLong(chunkSize)
+                .putShort((short) name.length).put(name)
+                .flip();
+        while (header.hasRemaining()) journal.write(header);
+
+        UploadSession session = new UploadSession(sessionId, safeName, totalSize, totalChunks, chunkSize,
+                partFile, journalFile, channel, journal, new BitSet(totalChunks));
+        sessions.put(sessionId, session);
+        return session;
+    }
+
+    public int activeSessions() {
+        return sessions.size();
+    }
+
+    public UploadSession getSession(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    /**
+     * Session for clients that only send X-File-Name; concurrent chunks of the same name, size and
+     * chunking share it. These sessions are journaled like any other and picked up again after a restart,
+     * but one idle for {@link #LEGACY_RESUME_MILLIS} is taken for an abandoned upload and replaced, so a
+     * new upload never completes on chunks left by an old one.
+     */
+    public UploadSession legacySession(String fileName, long totalSize, int totalChunks, long chunkSize) throws IOException {
+        String safeName = sanitize(fileName);
+        UploadSession[] abandoned = new UploadSession[1];
+        try {
+            String sessionId = legacySessions.compute(legacyKey(safeName, totalSize, totalChunks, chunkSize), (k, existing) -> {
+                UploadSession current = existing == null ? null : sessions.get(existing);
+                if (current != null) {
+                    if (current.lastActivity >= System.currentTimeMillis() - LEGACY_RESUME_MILLIS) return existing;
+                    if (sessions.remove(existing, current)) abandoned[0] = current;
+                }
+                try {
+                    return createSession(safeName, totalSize, totalChunks, chunkSize, true).getSessionId();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return sessions.get(sessionId);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (abandoned[0] != null) deleteSession(abandoned[0]);
+        }
+    }
+
+    private static String legacyKey(String safeName, long totalSize, int totalChunks, long chunkSize) {
+        return safeName + '\0' + totalSize + '\0' + totalChunks + '\0' + chunkSize;
+    }
+
+    private static String legacyKey(UploadSession session) {
+        return legacyKey(session.fileName, session.totalSize, session.totalChunks, session.chunkSize);
+    }
+
+    /**
+     * Writes one chunk at its own offset in the part file. Chunks may arrive in any order and on
+     * parallel connections; a retried chunk simply overwrites the same range. A body shorter or longer
+     * than the chunk it claims to be is rejected with IllegalArgumentException and not recorded.
+     *
+     * @return true for the single call that completes the upload, i.e. when every chunk is present
+     */
+    public boolean saveChunk(UploadSession session, int chunkIndex, long offset, InputStream in) throws IOException {
+        if (chunkIndex < 0 || chunkIndex >= session.totalChunks || offset < 0 || offset > session.totalSize) {
+            throw new IllegalArgumentException("Invalid chunk " + chunkIndex + " at offset " + offset);
+        }
+        long startNanos = System.nanoTime();
+        session.lastActivity = System.currentTimeMillis();
+
+        // The chunk that continues the hashed prefix is hashed from the buffer as it streams in;
+        // any other chunk is picked up from the page cache once the prefix reaches it
+        boolean inline = session.chunkSize > 0 && offset == chunkIndex * session.chunkSize && session.hashLock.tryLock();
+        if (inline && offset != session.hashedBytes) {
+            session.hashLock.unlock();
+            inline = false;
+        }
         long bytesThisChunk = 0;
-        try (OutputStream out = Files.newOutputStream(partFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-            byte[] buffer = new byte[8192];
+        long expected = expectedLength(session, chunkIndex, offset);
+        // Checked before each write, so an oversized chunk never spills into its neighbour's bytes
+        long limit = Math.min(expected >= 0 ? expected : Long.MAX_VALUE, session.totalSize - offset);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            byte[] array = buffer.array();
             int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+            while ((bytesRead = in.read(array)) != -1) {
+                if (bytesThisChunk + bytesRead > limit) {
+                    throw new IllegalArgumentException("Chunk " + chunkIndex + " exceeds its expected length");
+                }
+                buffer.clear().limit(bytesRead);
+                long pos = offset + bytesThisChunk;
+                while (buffer.hasRemaining()) {
+                    pos += session.channel.write(buffer, pos);
+                }
+                if (inline) session.digest.update(array, 0, bytesRead);
                 bytesThisChunk += bytesRead;
             }
+            if (expected >= 0 ? bytesThisChunk != expected : bytesThisChunk == 0 && session.totalSize > 0) {
+                throw new IllegalArgumentException("Chunk " + chunkIndex + " has " + bytesThisChunk + " bytes, expected "
+                        + (expected >= 0 ? expected : "at least 1"));
+            }
+            // The data must be durable before the journal claims it, or a power loss could leave a recorded hole
+            session.channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            if (inline) {
+                // The digest has seen a partial chunk; start over from disk later
+                session.digest = sha256();
+                session.hashedBytes = 0;
+                session.hashLock.unlock();
+            }
+            throw e;
+        }
+
+        long uploaded;
+        boolean justCompleted;
+        synchronized (session) {
+            if (!session.received.get(chunkIndex)) {
+                // Journal only after the data is forced, so a recovered bitmap never claims a torn chunk
+                ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + Long.BYTES).putInt(chunkIndex).putLong(bytesThisChunk).flip();
+                while (record.hasRemaining()) session.journal.write(record);
+                session.received.set(chunkIndex);
+                session.uploadedBytes += bytesThisChunk;
+            }
+            uploaded = session.uploadedBytes;
+            boolean wasCompleted = session.completed;
+            justCompleted = !wasCompleted && session.received.cardinality() == session.totalChunks;
+            if (justCompleted) session.completed = true;
+            // Under the session lock, so no report can follow the 100% one or finalizeUpload's completed event
+            if (!wasCompleted) sseHub.publishProgress(session.fileName, uploaded, session.totalSize);
+        }
+        if (inline) {
+            session.hashedBytes += bytesThisChunk;
+            session.hashLock.unlock();
+        }
+        advanceHash(session);
+        Metrics.UPLOAD_CHUNKS.increment();
+        Metrics.UPLOAD_BYTES.add(bytesThisChunk);
+        Metrics.UPLOAD_CHUNK_SAVE_US.recordMicrosSince(startNanos);
+        return justCompleted;
+    }
+
+    // Length chunkIndex must have, or -1 when the session has no chunk size and this is not the last chunk
+    private static long expectedLength(UploadSession session, int chunkIndex, long offset) {
+        if (chunkIndex == session.totalChunks - 1) return session.totalSize - offset;
+        if (session.chunkSize > 0) return session.chunkSize;
+        // Without a declared chunk size, non-final offsets were derived from this chunk's own length
+        return chunkIndex > 0 ? offset / chunkIndex : -1;
+    }
+
+    public String finalizeUpload(UploadSession session) throws IOException {
+        synchronized (session) {
+            if (session.received.cardinality() != session.totalChunks) {
+                throw new IllegalStateException("Upload incomplete: " + session.received.cardinality() + "/" + session.totalChunks + " chunks");
+            }
         }
-        uploadedBytesMap.computeIfAbsent(fileName, k -> new AtomicLong(0)).addAndGet(bytesThisChunk);
-        long uploaded = uploadedBytesMap.get(fileName).get();
-        long total = totalSizeMap.get(fileName);
-        double percent = (double) uploaded / total * 100.0;
-        String json = String.format("{\"uploaded\":%d,\"total\":%d,\"percent\":%.2f}", uploaded, total, percent);
-        sseHub.publish(fileName, "progress", json);
+        if (!sessions.remove(session.sessionId, session)) {
+            throw new IllegalStateException("Upload session already finalized: " + session.sessionId);
+        }
+        legacySessions.remove(legacyKey(session), session.sessionId);
+
+        String hash;
+        session.hashLock.lock();
+        try {
+            catchUpHash(session);
+            // Whatever the chunk layout left unhashed (unknown chunk size, short chunks) is read sequentially
+            hashRange(session, session.hashedBytes, session.totalSize);
+            hash = HexFormat.of().formatHex(session.digest.digest());
+        } finally {
+            session.hashLock.unlock();
+        }
+        session.close();
+
+        // Identical content already stored costs no second copy: the part file is dropped instead of moved
+        Path object = objectDir.resolve(hash.substring(0, 2)).resolve(hash);
+        Files.createDirectories(object.getParent());
+        String code = registry.registerContent(session.partFile, object, session.fileName, null, false, null);
+        Files.deleteIfExists(session.journalFile);
+        Metrics.UPLOAD_COMPLETED.increment();
+        sseHub.publishFinal(session.fileName, "completed", "{\"status\":\"completed\",\"code\":\"" + code + "\"}");
+        return code;
     }
 
-    public String finalizeUpload(String fileName) throws IOException {
-        Path partFile = uploadDir.resolve(fileName + ".part");
-        Path finalFile = uploadDir.resolve(fileName);
-        Files.move(partFile, finalFile, StandardCopyOption.REPLACE_EXISTING);
-        String code = registry.registerFile(finalFile.toString(), fileName, null, false, null);
-        sseHub.publish(fileName, "completed", "{\"status\":\"completed\",\"code\":\"" + code + "\"}");
+    /**
+     * Stores the first file part of a multipart/form-data body as a share. The part is streamed to a temp
+     * file and hashed on the way, so the upload never sits in memory.
+     */
+    public String saveMultipart(InputStream in, String boundary) throws IOException {
+        Path tmp = Files.createTempFile(uploadDir, "multipart-", ".part");
+        MessageDigest digest = sha256();
+        String[] fileName = new String[1];
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            Multiparser parser = new Multiparser(boundary, part -> {
+                if (fileName[0] != null || part.getFileName() == null || part.getFileName().isEmpty()) return null;
+                fileName[0] = part.getFileName();
+                return new DigestChannel(channel, digest);
+            });
+            byte[] buffer = new byte[64 * 1024];
+            long max = maxUploadBytes;
+            long received = 0;
+            int n;
+            while (!parser.isDone() && (n = in.read(buffer)) != -1) {
+                received += n;
+                if (max > 0 && received > max) {
+                    throw new UploadTooLargeException("Multipart body exceeds the limit of " + max + " bytes");
+                }
+                parser.feed(ByteBuffer.wrap(buffer, 0, n));
+            }
+            parser.finish();
+            if (fileName[0] == null) throw new IllegalArgumentException("Multipart body has no file part");
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        String hash = HexFormat.of().formatHex(digest.digest());
+        Path object = objectDir.resolve(hash.substring(0, 2)).resolve(hash);
+        Files.createDirectories(object.getParent());
+        String code = registry.registerContent(tmp, object, fileName[0], null, false, null);
+        Metrics.UPLOAD_COMPLETED.increment();
+        sseHub.publishFinal(fileName[0], "completed", "{\"status\":\"completed\",\"code\":\"" + code + "\"}");
         return code;
     }
+
+    // Hashes exactly the bytes the file channel accepted
+    private static final class DigestChannel implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final MessageDigest digest;
+
+        DigestChannel(WritableByteChannel target, MessageDigest digest) {
+            this.target = target;
+            this.digest = digest;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ByteBuffer written = src.duplicate();
+            int n = target.write(src);
+            digest.update(written.limit(written.position() + n));
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The target is owned by the caller
+        }
+    }
+
+    // Hashes newly contiguous chunks unless another thread is already doing so; that one then picks them up
+    private void advanceHash(UploadSession session) {
+        if (session.chunkSize <= 0) return;
+        session.hashWanted.set(true);
+        while (session.hashWanted.get() && session.hashLock.tryLock()) {
+            try {
+                session.hashWanted.set(false);
+                catchUpHash(session);
+            } catch (IOException e) {
+                session.digest = sha256();
+                session.hashedBytes = 0;
+            } finally {
+                session.hashLock.unlock();
+            }
+        }
+    }
+
+    // Extends the hashed prefix over every received chunk that directly follows it; hashLock held
+    private void catchUpHash(UploadSession session) throws IOException {
+        if (session.chunkSize <= 0) return;
+        while (session.hashedBytes < session.totalSize && session.hashedBytes % session.chunkSize == 0) {
+            int next = (int) (session.hashedBytes / session.chunkSize);
+            synchronized (session) {
+                if (next >= session.totalChunks || !session.received.get(next)) return;
+            }
+            long end = Math.min(session.totalSize, (next + 1L) * session.chunkSize);
+            hashRange(session, session.hashedBytes, end);
+        }
+    }
+
+    private void hashRange(UploadSession session, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long pos = from;
+        while (pos < to) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), to - pos));
+            int n = session.channel.read(buffer, pos);
+            if (n < 0) throw new IOException("Part file shorter than expected: " + session.partFile);
+            session.digest.update(buffer.array(), 0, n);
+            pos += n;
+        }
+        session.hashedBytes = to;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int cleanupStaleSessions(long maxIdleMillis) {
+        int removed = 0;
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
+        for (Map.Entry<String, UploadSession> entry : sessions.entrySet()) {
+            UploadSession session = entry.getValue();
+            if (session.lastActivity < cutoff && sessions.remove(entry.getKey(), session)) {
+                legacySessions.remove(legacyKey(session), session.sessionId);
+                deleteSession(session);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    // The session is already out of the maps
+    private static void deleteSession(UploadSession session) {
+        session.close();
+        try {
+            Files.deleteIfExists(session.partFile);
+            Files.deleteIfExists(session.journalFile);
+        } catch (IOException e) {
+            System.err.println("Failed to delete stale upload: " + e.getMessage());
+        }
+    }
+
+    private void recoverSessions() {
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(uploadDir, "*.journal")) {
+            for (Path journalFile : journals) {
+                try {
+                    UploadSession session = recoverSession(journalFile);
+                    if (session != null) {
+                        sessions.put(session.sessionId, session);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Skipping unreadable upload journal " + journalFile + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to scan upload journals: " + e.getMessage());
+        }
+        if (!sessions.isEmpty()) {
+            System.out.println("Recovered " + sessions.size() + " upload sessions");
+        }
+    }
+
+    private UploadSession recoverSession(Path journalFile) throws IOException {
+        String name = journalFile.getFileName().toString();
+        String sessionId = name.substring(0, name.length() - ".journal".length());
+        Path partFile = uploadDir.resolve(sessionId + ".part");
+        if (!Files.exists(partFile)) {
+            Files.deleteIfExists(journalFile);
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(journalFile));
+        if (buf.getInt() != JOURNAL_MAGIC) throw new IOException("bad journal header");
+        byte version = buf.get();
+        if (version != 1 && version != JOURNAL_VERSION) throw new IOException("unknown journal version " + version);
+        boolean legacy = version >= 2 && (buf.get() & FLAG_LEGACY) != 0;
+        long totalSize = buf.getLong();
+        int totalChunks = buf.getInt();
+        long chunkSize = buf.getLong();
+        byte[] fileName = new byte[buf.getShort()];
+        buf.get(fileName);
+        // A torn trailing record from a crash is ignored and truncated away
+        BitSet received = new BitSet(totalChunks);
+        int recordSize = version == 1 ? Integer.BYTES : Integer.BYTES + Long.BYTES;
+        long uploadedBytes = 0;
+        while (buf.remaining() >= recordSize) {
+            int chunkIndex = buf.getInt();
+            long length = version == 1 ? -1 : buf.getLong();
+            if (chunkIndex < 0 || chunkIndex >= totalChunks || received.get(chunkIndex)) continue;
+            received.set(chunkIndex);
+            uploadedBytes += length;
+        }
+        // v1 records carry no length; assume full chunks as before
+        if (version == 1) uploadedBytes = receivedBytes(received, totalChunks, chunkSize, totalSize);
+        long validLength = buf.position();
+
+        FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.WRITE);
+        journal.truncate(validLength);
+        journal.position(validLength);
+        FileChannel channel = FileChannel.open(partFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        UploadSession session = new UploadSession(sessionId, new String(fileName, StandardCharsets.UTF_8), totalSize,
+                totalChunks, chunkSize, partFile, journalFile, channel, journal, received);
+        session.uploadedBytes = uploadedBytes;
+        // Idle time counts from the last journaled chunk, not from the restart
+        session.lastActivity = Files.getLastModifiedTime(journalFile).toMillis();
+        if (legacy) legacySessions.putIfAbsent(legacyKey(session), sessionId);
+        return session;
+    }
+
+    private static long receivedBytes(BitSet received, int totalChunks, long chunkSize, long totalSize) {
+        if (chunkSize <= 0) {
+            return received.cardinality() == totalChunks ? totalSize : 0;
+        }
+        long bytes = (long) received.cardinality() * chunkSize;
+        if (received.get(totalChunks - 1)) {
+            bytes -= chunkSize - (totalSize - (long) (totalChunks - 1) * chunkSize);
+        }
+        return bytes;
+    }
+
+    private static String sanitize(String fileName) {
+        String name = fileName.replaceAll("[\\\\/:*?\"<>|]", "_");
+        return name.isBlank() || name.equals(".") || name.equals("..") ? "upload" : name;
+    }
 }
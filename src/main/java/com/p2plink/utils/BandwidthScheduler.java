@@ -0,0 +1,199 @@
+package com.p2plink.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Egress limits shared by every transfer path: a global rate, a rate per share code and a rate per
+ * client address, each in bytes per second (0 = unlimited) and adjustable while transfers run.
+ *
+ * Each limit is a token bucket kept as a virtual clock (GCRA): a transfer reserves a quantum of bytes
+ * on all the buckets that apply to it and may send once the slowest of them has caught up. Because a
+ * transfer holds at most one reservation at a time and its quantum scales with its weight, concurrent
+ * transfers are served in turn, in proportion to their weights, and a newcomer never waits behind
+ * more than one quantum per active transfer.
+ */
+public final class BandwidthScheduler {
+
+    private static final long QUANTUM = 64 * 1024;
+    // How far reservations may run ahead of a bucket's drain rate; an idle bucket lets a short send go at once
+    private static final long BURST_NANOS = 50_000_000L;
+
+    private final Bucket global = new Bucket();
+    private final Map<String, Bucket> shares = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile long globalRate, shareRate, clientRate;
+
+    public BandwidthScheduler(long globalBytesPerSec, long perShareBytesPerSec, long perClientBytesPerSec) {
+        setLimits(globalBytesPerSec, perShareBytesPerSec, perClientBytesPerSec);
+    }
+
+    public void setLimits(long globalBytesPerSec, long perShareBytesPerSec, long perClientBytesPerSec) {
+        this.globalRate = Math.max(0, globalBytesPerSec);
+        this.shareRate = Math.max(0, perShareBytesPerSec);
+        this.clientRate = Math.max(0, perClientBytesPerSec);
+    }
+
+    public long getGlobalLimit() {
+        return globalRate;
+    }
+
+    public long getPerShareLimit() {
+        return shareRate;
+    }
+
+    public long getPerClientLimit() {
+        return clientRate;
+    }
+
+    public int activeTransfers() {
+        return active.get();
+    }
+
+    /**
+     * Starts pacing one transfer of share {@code share} to client {@code client}. Close it when the
+     * transfer ends so idle per-share and per-client buckets are dropped.
+     */
+    public Transfer open(String share, String client, int weight) {
+        active.incrementAndGet();
+        return new Transfer(share, acquireBucket(shares, share), client, acquireBucket(clients, client), Math.max(1, weight));
+    }
+
+    private static Bucket acquireBucket(Map<String, Bucket> map, String key) {
+        if (key == null) return null;
+        return map.compute(key, (k, b) -> {
+            if (b == null) b = new Bucket();
+            b.users++;
+            return b;
+        });
+    }
+
+    private static void releaseBucket(Map<String, Bucket> map, String key, Bucket bucket) {
+        if (bucket == null) return;
+        map.computeIfPresent(key, (k, b) -> --b.users == 0 ? null : b);
+    }
+
+    private static final class Bucket {
+        int users; // guarded by the map's compute
+        private long tat = System.nanoTime(); // when everything reserved so far has drained
+
+        /** Reserves {@code bytes} at {@code rate} and returns the time from which they may be sent. */
+        synchronized long reserve(long bytes, long rate, long now) {
+            long burst = Math.max(BURST_NANOS, QUANTUM * 1_000_000_000L / rate);
+            tat = later(tat, now) + bytes * 1_000_000_000L / rate;
+            return tat - burst;
+        }
+    }
+
+    /**
+     * Pacing state of one transfer. Not thread-safe; one transfer is driven by one thread or reactor.
+     * Callers ask {@link #tryAcquire} (non-blocking) or {@link #acquire} (blocking) how much they may
+     * send, send up to that, and report what actually went out through {@link #consume}.
+     */
+    public final class Transfer implements AutoCloseable {
+        private final Bucket share, client;
+        private final String shareKey, clientKey;
+        private final int weight;
+        private long credit;
+        private long readyAt;
+        private boolean closed;
+
+        private Transfer(String shareKey, Bucket share, String clientKey, Bucket client, int weight) {
+            this.shareKey = shareKey;
+            this.share = share;
+            this.clientKey = clientKey;
+            this.client = client;
+            this.weight = weight;
+        }
+
+        /** Bytes that may be sent right now, at most {@code max}; 0 means wait until {@link #readyAt}. */
+        public long tryAcquire(long max) {
+            if (max <= 0) return 0;
+            long now = System.nanoTime();
+            if (credit > 0) {
+                if (now - readyAt < 0) return 0;
+                return Math.min(credit, max);
+            }
+            long g = globalRate, s = shareRate, c = clientRate;
+            if (g == 0 && (s == 0 || share == null) && (c == 0 || client == null)) return max;
+
+            long quantum = Math.min(max, QUANTUM * weight);
+            long ready = now;
+            if (g > 0) ready = later(ready, global.reserve(quantum, g, now));
+            if (s > 0 && share != null) ready = later(ready, share.reserve(quantum, s, now));
+            if (c > 0 && client != null) ready = later(ready, client.reserve(quantum, c, now));
+            credit = quantum;
+            readyAt = ready;
+            return now - ready < 0 ? 0 : quantum;
+        }
+
+        /** Blocks until some bytes may be sent and returns how many, at most {@code max}. */
+        public long acquire(long max) throws InterruptedIOException {
+            long n;
+            while ((n = tryAcquire(max)) == 0 && max > 0) {
+                LockSupport.parkNanos(readyAt - System.nanoTime());
+                if (Thread.interrupted()) throw new InterruptedIOException("Interrupted while paced");
+            }
+            return n;
+        }
+
+        public void consume(long sent) {
+            if (credit > 0) credit = Math.max(0, credit - sent);
+        }
+
+        /** {@link System#nanoTime()} at which the pending reservation may be sent. */
+        public long readyAt() {
+            return readyAt;
+        }
+
+        /** {@code out}, with every write paced by this transfer. */
+        public OutputStream pace(OutputStream out) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int n = (int) acquire(len);
+                        out.write(b, off, n);
+                        consume(n);
+                        off += n;
+                        len -= n;
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            active.decrementAndGet();
+            releaseBucket(shares, shareKey, share);
+            releaseBucket(clients, clientKey, client);
+        }
+    }
+
+    private static long later(long a, long b) {
+        return a - b < 0 ? b : a;
+    }
+}
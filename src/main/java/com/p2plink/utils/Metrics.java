@@ -0,0 +1,183 @@
+package com.p2plink.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters, gauges and latency histograms, served as JSON by /api/metrics. Recording
+ * never locks or allocates: counters are {@link LongAdder}s and a histogram is a fixed array of
+ * log-linear buckets (4 per power of two, so quantiles are within about 20%). Everything is summed up
+ * only when {@link #toJson} is called.
+ */
+public final class Metrics {
+
+    private static final Map<String, Counter> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+    private static final long STARTED = System.currentTimeMillis();
+
+    public static final Counter UPLOAD_CHUNKS = counter("upload.chunks");
+    public static final Counter UPLOAD_BYTES = counter("upload.bytes");
+    public static final Counter UPLOAD_COMPLETED = counter("upload.completed");
+    public static final Histogram UPLOAD_CHUNK_SAVE_US = histogram("upload.chunk_save_us");
+
+    public static final Counter DOWNLOAD_STARTED = counter("download.started");
+    public static final Counter DOWNLOAD_COMPLETED = counter("download.completed");
+    public static final Counter DOWNLOAD_BYTES = counter("download.bytes");
+    public static final Histogram DOWNLOAD_TTFB_US = histogram("download.ttfb_us");
+    public static final Histogram DOWNLOAD_THROUGHPUT_KBPS = histogram("download.throughput_kbps");
+
+    public static final Counter HOTCACHE_HITS = counter("hotcache.hits");
+    public static final Counter HOTCACHE_MISSES = counter("hotcache.misses");
+    public static final Counter HOTCACHE_ADMITTED = counter("hotcache.admitted");
+    public static final Counter HOTCACHE_EVICTED = counter("hotcache.evicted");
+
+    public static final Counter FILESERVER_CONNECTIONS = counter("fileserver.connections");
+    public static final Counter FILESERVER_REQUESTS = counter("fileserver.requests");
+    public static final Counter FILESERVER_BYTES = counter("fileserver.bytes");
+    public static final Histogram FILESERVER_TTFB_US = histogram("fileserver.ttfb_us");
+    public static final Histogram FILESERVER_THROUGHPUT_KBPS = histogram("fileserver.throughput_kbps");
+
+    public static final Counter SHARER_SENDS = counter("sharer.sends");
+    public static final Counter SHARER_BYTES = counter("sharer.bytes");
+
+    public static final Counter SSE_EVENTS = counter("sse.events");
+    public static final Counter SSE_DROPPED = counter("sse.dropped");
+    public static final Counter SSE_DISCONNECTED = counter("sse.slow_disconnects");
+    public static final Histogram SSE_QUEUE_DEPTH = histogram("sse.queue_depth");
+
+    public static final Counter REGISTRY_EXPIRED = counter("registry.expired");
+    public static final Histogram REGISTRY_EXPIRY_LAG_MS = histogram("registry.expiry_lag_ms");
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /** Registers a value read at scrape time, replacing any earlier one of the same name. */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /** Throughput in KB/s for {@code bytes} sent in {@code nanos}, for the throughput histograms. */
+    public static long kbPerSecond(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : (long) (bytes * 1_000_000_000.0 / 1024 / nanos);
+    }
+
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\"uptimeMs\":").append(System.currentTimeMillis() - STARTED);
+        sb.append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Counter> e : COUNTERS.entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue().get());
+        }
+        sb.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, LongSupplier> e : GAUGES.entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":").append(e.getValue().getAsLong());
+        }
+        sb.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, Histogram> e : HISTOGRAMS.entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":");
+            e.getValue().appendJson(sb);
+        }
+        return sb.append("}}").toString();
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private static final int SUB_BITS = 2;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+                // lost a race with a larger or concurrent update; re-read
+            }
+        }
+
+        /** Records the time since {@code startNanos} in microseconds. */
+        public void recordMicrosSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        // Values below SUB_COUNT get a bucket each; above, the top SUB_BITS bits after the leading one pick the bucket
+        static int index(long v) {
+            if (v < SUB_COUNT) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+            return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_COUNT) return index;
+            int exp = (index >> SUB_BITS) + SUB_BITS - 1;
+            long width = 1L << (exp - SUB_BITS);
+            return ((long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << (exp - SUB_BITS)) + width - 1;
+        }
+
+        void appendJson(StringBuilder sb) {
+            long[] snapshot = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            long mx = max.get();
+            sb.append("{\"count\":").append(total).append(",\"sum\":").append(sum.sum()).append(",\"max\":").append(mx);
+            int bucket = 0;
+            long seen = 0;
+            for (int q = 0; q < QUANTILES.length; q++) {
+                long rank = (long) Math.ceil(QUANTILES[q] * total);
+                while (bucket < snapshot.length && seen + snapshot[bucket] < rank) seen += snapshot[bucket++];
+                long value = total == 0 ? 0 : Math.min(upperBound(Math.min(bucket, snapshot.length - 1)), mx);
+                sb.append(",\"").append(QUANTILE_NAMES[q]).append("\":").append(value);
+            }
+            sb.append('}');
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.p2plink.utils;
 
+import java.util.Arrays;
+
 public class ParseResult {
     private  final String fileName;
     private  final byte[] fileContent;
@@ -11,18 +13,24 @@ public class ParseResult {
         this.contentType = contentType;
     }
 
+    // Horspool: on a mismatch the window jumps by how far its last byte sits from the end of the sequence
     public static int findSequence(byte[] data, byte[] sequence,int startPos) {
-        outer:
-             for(int i=startPos;i<=data.length-sequence.length;i++){
-
-                 for(int j=0;j<sequence.length;j++){
-                     if(data[i+j] !=sequence[j]){
-                       continue outer;
-                     }
-                 }
-               return i;
-             }
-             return -1;
+        int m = sequence.length;
+        if (m == 0) return startPos <= data.length ? startPos : -1;
+        int last = m - 1;
+        int[] skip = new int[256];
+        Arrays.fill(skip, m);
+        for (int k = 0; k < last; k++) skip[sequence[k] & 0xff] = last - k;
+        int i = Math.max(0, startPos);
+        while (i <= data.length - m) {
+            int j = last;
+            while (data[i + j] == sequence[j]) {
+                if (j == 0) return i;
+                j--;
+            }
+            i += skip[data[i + last] & 0xff];
+        }
+        return -1;
     }
 
     public String getFileName() {
@@ -0,0 +1,79 @@
+package com.p2plink.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class TransferUtils {
+
+    public static final int DEFAULT_WINDOW = 256 * 1024;
+
+    /**
+     * Sends {@code count} bytes of {@code src} starting at {@code position}. When the target stream is
+     * a {@link ZeroCopySink} the kernel copies file pages straight to the socket; otherwise the
+     * range is pumped through one {@code window}-sized buffer instead of many small reads.
+     *
+     * @return the number of bytes actually sent, short only if the file shrank underneath us
+     */
+    public static long transfer(FileChannel src, long position, long count, OutputStream out, int window) throws IOException {
+        return transfer(src, position, count, out, window, null);
+    }
+
+    /** As above, with each step first cleared by {@code pace} when it is non-null. */
+    public static long transfer(FileChannel src, long position, long count, OutputStream out, int window,
+                                BandwidthScheduler.Transfer pace) throws IOException {
+        long pos = position;
+        long end = position + count;
+        if (out instanceof ZeroCopySink sink) {
+            while (pos < end) {
+                long step = Math.min(window, end - pos);
+                if (pace != null) step = pace.acquire(step);
+                long sent = sink.transferFrom(src, pos, step);
+                if (sent <= 0) break;
+                if (pace != null) pace.consume(sent);
+                pos += sent;
+            }
+            return pos - position;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(window, count)));
+        byte[] array = buffer.array();
+        while (pos < end) {
+            long step = Math.min(buffer.capacity(), end - pos);
+            if (pace != null) step = pace.acquire(step);
+            buffer.clear().limit((int) step);
+            int n = src.read(buffer, pos);
+            if (n <= 0) break;
+            out.write(array, 0, n);
+            if (pace != null) pace.consume(n);
+            pos += n;
+        }
+        return pos - position;
+    }
+
+    /**
+     * Sends the remaining bytes of {@code src}, an in-memory copy of a file, in {@code window}-sized
+     * steps cleared by {@code pace} when it is non-null. A {@link ZeroCopySink} takes each step as a
+     * buffer, so direct buffers reach the socket without a heap copy.
+     */
+    public static long transfer(ByteBuffer src, OutputStream out, int window, BandwidthScheduler.Transfer pace) throws IOException {
+        ByteBuffer data = src.duplicate();
+        long total = data.remaining();
+        byte[] copy = out instanceof ZeroCopySink ? null : new byte[(int) Math.max(1, Math.min(window, total))];
+        while (data.hasRemaining()) {
+            int step = Math.min(window, data.remaining());
+            if (pace != null) step = (int) pace.acquire(step);
+            if (copy == null) {
+                ((ZeroCopySink) out).write(data.slice(data.position(), step));
+            } else {
+                step = Math.min(step, copy.length);
+                data.get(data.position(), copy, 0, step);
+                out.write(copy, 0, step);
+            }
+            data.position(data.position() + step);
+            if (pace != null) pace.consume(step);
+        }
+        return total;
+    }
+}
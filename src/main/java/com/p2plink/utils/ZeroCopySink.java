@@ -0,0 +1,17 @@
+package com.p2plink.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by response streams that sit directly on a socket, so file regions can be handed to
+ * {@link FileChannel#transferTo} (sendfile) instead of being copied through a user-space buffer.
+ */
+public interface ZeroCopySink {
+
+    long transferFrom(FileChannel src, long position, long count) throws IOException;
+
+    /** Writes the remaining bytes of {@code src}, which may be a direct buffer, without copying them to the heap. */
+    void write(ByteBuffer src) throws IOException;
+}
@@ -0,0 +1,152 @@
+package com.p2plink.parser;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultiparserTest {
+
+    private static final String BOUNDARY = "----p2plinkBoundary7MA4YWxk";
+
+    // Collects every part's content by name, plus the sizes reported to close()
+    private static final class Collector implements Multiparser.PartHandler {
+        final Map<String, ByteArrayOutputStream> contents = new LinkedHashMap<>();
+        final Map<String, String> fileNames = new LinkedHashMap<>();
+        final List<Long> sizes = new ArrayList<>();
+
+        @Override
+        public WritableByteChannel open(Multiparser.Part part) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            contents.put(part.getName(), out);
+            fileNames.put(part.getName(), part.getFileName());
+            return Channels.newChannel(out);
+        }
+
+        @Override
+        public void close(Multiparser.Part part, long size) {
+            sizes.add(size);
+        }
+
+        String text(String name) {
+            return contents.get(name).toString(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static byte[] body(String fileContent, String closing) {
+        String s = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n"
+                + fileContent
+                + closing;
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Content that contains most of a delimiter, so a split inside it must not be taken for one
+    private static final String TRICKY = "line one\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "X\r\n-- tail";
+
+    private static Collector parse(byte[] body, int... splits) throws IOException {
+        Collector collector = new Collector();
+        Multiparser parser = new Multiparser(BOUNDARY, collector);
+        int from = 0;
+        for (int split : splits) {
+            parser.feed(ByteBuffer.wrap(body, from, split - from));
+            from = split;
+        }
+        parser.feed(ByteBuffer.wrap(body, from, body.length - from));
+        parser.finish();
+        return collector;
+    }
+
+    @Test
+    void parsesFieldAndFilePartsInOneBuffer() throws IOException {
+        Collector c = parse(body("file content", "\r\n--" + BOUNDARY + "--\r\n"));
+        assertEquals("hello", c.text("note"));
+        assertEquals("file content", c.text("file"));
+        assertNull(c.fileNames.get("note"));
+        assertEquals("a.bin", c.fileNames.get("file"));
+        assertEquals(List.of(5L, 12L), c.sizes);
+    }
+
+    @Test
+    void delimiterStraddlingEverySplitPointIsFound() throws IOException {
+        byte[] body = body(TRICKY, "\r\n--" + BOUNDARY + "--\r\n");
+        for (int split = 1; split < body.length; split++) {
+            Collector c = parse(body, split);
+            assertEquals("hello", c.text("note"), "split at " + split);
+            assertEquals(TRICKY, c.text("file"), "split at " + split);
+        }
+    }
+
+    @Test
+    void bodyFedOneByteAtATime() throws IOException {
+        byte[] body = body(TRICKY, "\r\n--" + BOUNDARY + "--\r\n");
+        int[] splits = new int[body.length - 1];
+        for (int i = 0; i < splits.length; i++) splits[i] = i + 1;
+        Collector c = parse(body, splits);
+        assertEquals(TRICKY, c.text("file"));
+    }
+
+    @Test
+    void partLargerThanTheBufferIsStreamed() throws IOException {
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 200_000) big.append("0123456789abcdef\r\n-");
+        byte[] body = body(big.toString(), "\r\n--" + BOUNDARY + "--\r\n");
+        Collector c = parse(body, 70_000, 140_000);
+        assertEquals(big.toString(), c.text("file"));
+    }
+
+    @Test
+    void transportPaddingAfterDelimiterIsSkipped() throws IOException {
+        String s = "--" + BOUNDARY + " \t \r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"p.txt\"\r\n\r\n"
+                + "padded"
+                + "\r\n--" + BOUNDARY + "--\r\n";
+        byte[] body = s.getBytes(StandardCharsets.ISO_8859_1);
+        for (int split = 1; split < body.length; split++) {
+            assertEquals("padded", parse(body, split).text("file"), "split at " + split);
+        }
+    }
+
+    @Test
+    void missingClosingBoundaryFailsFinish() throws IOException {
+        byte[] body = body("truncated upload", "");
+        Multiparser parser = new Multiparser(BOUNDARY, new Collector());
+        parser.feed(ByteBuffer.wrap(body));
+        assertFalse(parser.isDone());
+        assertThrows(IOException.class, parser::finish);
+    }
+
+    @Test
+    void closingDelimiterWithoutTrailingDashesIsTolerated() throws IOException {
+        Collector c = parse(body("no dashes", "\r\n--" + BOUNDARY));
+        assertEquals("no dashes", c.text("file"));
+    }
+
+    @Test
+    void epilogueAfterClosingBoundaryIsIgnored() throws IOException {
+        Collector c = parse(body("data", "\r\n--" + BOUNDARY + "--\r\nepilogue\r\n--" + BOUNDARY + "\r\n"));
+        assertEquals("data", c.text("file"));
+        assertEquals(2, c.sizes.size());
+    }
+
+    @Test
+    void garbageAfterDelimiterIsRejected() {
+        byte[] body = ("--" + BOUNDARY + "junk\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        Multiparser parser = new Multiparser(BOUNDARY, new Collector());
+        assertThrows(IOException.class, () -> parser.feed(ByteBuffer.wrap(body)));
+    }
+}
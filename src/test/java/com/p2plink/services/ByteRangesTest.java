@@ -0,0 +1,73 @@
+package com.p2plink.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteRangesTest {
+
+    private static void assertRanges(List<long[]> actual, long... expected) {
+        assertNotNull(actual);
+        assertEquals(expected.length / 2, actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+            assertArrayEquals(new long[]{expected[2 * i], expected[2 * i + 1]}, actual.get(i), "range " + i);
+        }
+    }
+
+    @Test
+    void singleRangeForms() {
+        assertRanges(ByteRanges.parse("bytes=0-99", 1000), 0, 99);
+        assertRanges(ByteRanges.parse("bytes=900-", 1000), 900, 999);
+        assertRanges(ByteRanges.parse("bytes=-100", 1000), 900, 999);
+        assertRanges(ByteRanges.parse("BYTES= 10-19 ", 1000), 10, 19);
+    }
+
+    @Test
+    void rangesAreClampedToTheFile() {
+        assertRanges(ByteRanges.parse("bytes=500-5000", 1000), 500, 999);
+        assertRanges(ByteRanges.parse("bytes=-5000", 1000), 0, 999);
+    }
+
+    @Test
+    void unsatisfiableRangesGiveAnEmptyList() {
+        assertEquals(List.of(), ByteRanges.parse("bytes=1000-", 1000));
+        assertEquals(List.of(), ByteRanges.parse("bytes=-0", 1000));
+        assertEquals(List.of(), ByteRanges.parse("bytes=0-10", 0));
+    }
+
+    @Test
+    void ignoredHeadersGiveNull() {
+        assertNull(ByteRanges.parse(null, 1000));
+        assertNull(ByteRanges.parse("items=0-1", 1000));
+        assertNull(ByteRanges.parse("bytes=", 1000));
+        assertNull(ByteRanges.parse("bytes=5", 1000));
+        assertNull(ByteRanges.parse("bytes=9-5", 1000));
+        assertNull(ByteRanges.parse("bytes=a-b", 1000));
+    }
+
+    @Test
+    void overlappingAndAdjacentRangesAreSortedAndCoalesced() {
+        assertRanges(ByteRanges.parse("bytes=50-99,0-9,10-19,95-120,500-", 1000), 0, 19, 50, 120, 500, 999);
+        assertRanges(ByteRanges.parse("bytes=0-0,-1", 10), 0, 0, 9, 9);
+        assertRanges(ByteRanges.parse("bytes=0-499,-600", 1000), 0, 999);
+    }
+
+    @Test
+    void tooManyRangesFallBackToTheWholeFile() {
+        StringBuilder header = new StringBuilder("bytes=");
+        for (int i = 0; i <= ByteRanges.MAX_RANGES; i++) {
+            if (i > 0) header.append(',');
+            header.append(i * 10).append('-').append(i * 10 + 1);
+        }
+        assertNull(ByteRanges.parse(header.toString(), 100_000));
+        // The limit applies after coalescing, so many overlapping specs are still served
+        StringBuilder overlapping = new StringBuilder("bytes=");
+        for (int i = 0; i <= ByteRanges.MAX_RANGES; i++) {
+            if (i > 0) overlapping.append(',');
+            overlapping.append(i).append('-').append(i + 10);
+        }
+        assertRanges(ByteRanges.parse(overlapping.toString(), 100_000), 0, ByteRanges.MAX_RANGES + 10);
+    }
+}
@@ -0,0 +1,162 @@
+package com.p2plink.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegistryJournalTest {
+
+    @TempDir
+    Path dir;
+
+    // Live entries as rebuilt by load
+    private static final class Recorder implements RegistryJournal.Sink {
+        final Map<Integer, byte[]> live = new HashMap<>();
+
+        @Override
+        public void put(int code, byte[] record) {
+            live.put(code, record);
+        }
+
+        @Override
+        public void remove(int code) {
+            live.remove(code);
+        }
+
+        @Override
+        public void expired(int code, byte[] record) {
+            live.remove(code);
+        }
+    }
+
+    private static byte[] record(String name) {
+        return FileRegistry.FileEntry.encode("/data/" + name, name, 42, 1_000, 0, false, null);
+    }
+
+    private Recorder load() throws IOException {
+        Recorder recorder = new Recorder();
+        new RegistryJournal(dir).load(recorder, System.currentTimeMillis());
+        return recorder;
+    }
+
+    private Path newestJournal() throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            List<Path> journals = s.filter(p -> p.getFileName().toString().startsWith("registry.journal."))
+                    .sorted((a, b) -> Long.compare(generation(a), generation(b)))
+                    .toList();
+            return journals.get(journals.size() - 1);
+        }
+    }
+
+    private static long generation(Path p) {
+        String name = p.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    @Test
+    void putsAndRemovesAreReplayed() throws IOException {
+        RegistryJournal journal = new RegistryJournal(dir);
+        journal.load(new Recorder(), System.currentTimeMillis());
+        journal.appendPut(1, record("a"));
+        journal.appendPut(2, record("b"));
+        journal.sync(journal.appendRemove(1));
+        journal.close();
+
+        Recorder recovered = load();
+        assertEquals(1, recovered.live.size());
+        assertArrayEquals(record("b"), recovered.live.get(2));
+    }
+
+    @Test
+    void tornTailIsCutOffAndEarlierRecordsSurvive() throws IOException {
+        RegistryJournal journal = new RegistryJournal(dir);
+        journal.load(new Recorder(), System.currentTimeMillis());
+        journal.appendPut(7, record("kept"));
+        journal.sync(journal.appendPut(8, record("also kept")));
+        journal.close();
+
+        Path file = newestJournal();
+        long intact = Files.size(file);
+        // A crash mid-append: a length prefix promising more than was written
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.allocate(7).putInt(200).put((byte) 1).putShort((short) 3).flip());
+        }
+
+        Recorder recovered = load();
+        assertEquals(Map.of(7, record("kept"), 8, record("also kept")).keySet(), recovered.live.keySet());
+        assertEquals(intact, Files.size(file), "torn bytes are truncated away");
+    }
+
+    @Test
+    void recordWithBadChecksumEndsTheReplay() throws IOException {
+        RegistryJournal journal = new RegistryJournal(dir);
+        journal.load(new Recorder(), System.currentTimeMillis());
+        journal.appendPut(1, record("good"));
+        journal.sync(journal.appendPut(2, record("flipped")));
+        journal.close();
+
+        Path file = newestJournal();
+        long size = Files.size(file);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, size - 6);
+            b.put(0, (byte) (b.get(0) ^ 0xff));
+            ch.write(b.flip(), size - 6);
+        }
+
+        Recorder recovered = load();
+        assertEquals(List.of(1), List.copyOf(recovered.live.keySet()));
+    }
+
+    @Test
+    void registryRestoresEntriesAfterRestartAndCompaction(@TempDir Path files) throws IOException {
+        Path a = Files.writeString(files.resolve("a.txt"), "alpha");
+        Path b = Files.writeString(files.resolve("b.txt"), "beta");
+        FileRegistry registry = new FileRegistry(dir);
+        String kept = registry.registerFile(a.toString(), "a.txt", 0L, false, null);
+        String removed = registry.registerFile(b.toString(), "b.txt", 0L, false, null);
+        assertTrue(registry.removeFile(removed));
+
+        // The second load replays the journal and compacts it into a snapshot; the third reads the snapshot
+        for (int run = 0; run < 2; run++) {
+            registry = new FileRegistry(dir);
+            assertEquals(1, registry.size());
+            FileRegistry.FileEntry entry = registry.getFile(kept);
+            assertNotNull(entry);
+            assertEquals("a.txt", entry.getOriginalName());
+            assertEquals(a.toString(), entry.getFilePath());
+            assertEquals(5, entry.getFileSize());
+            assertNull(registry.getFile(removed));
+        }
+        assertTrue(Files.exists(dir.resolve("registry.snapshot")));
+    }
+
+    @Test
+    void tornTailAfterRestartKeepsTheRegistryUsable(@TempDir Path files) throws IOException {
+        Path a = Files.writeString(files.resolve("a.txt"), "alpha");
+        FileRegistry registry = new FileRegistry(dir);
+        String code = registry.registerFile(a.toString(), "a.txt", 0L, false, null);
+        try (FileChannel ch = FileChannel.open(newestJournal(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.wrap(new byte[]{0, 0, 1}));
+        }
+
+        registry = new FileRegistry(dir);
+        assertNotNull(registry.getFile(code));
+        String next = registry.registerFile(a.toString(), "again.txt", 0L, false, null);
+        registry = new FileRegistry(dir);
+        assertEquals(2, registry.size());
+        assertEquals("again.txt", registry.getFile(next).getOriginalName());
+    }
+}
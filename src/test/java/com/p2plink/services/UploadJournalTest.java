@@ -0,0 +1,145 @@
+package com.p2plink.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadJournalTest {
+
+    private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path dir;
+
+    private final FileRegistry registry = new FileRegistry();
+
+    private UploadService service() {
+        return new UploadService(registry, new SseHub(), dir);
+    }
+
+    private static boolean save(UploadService service, UploadService.UploadSession session, int index, long offset, int length)
+            throws IOException {
+        return service.saveChunk(session, index, offset, new ByteArrayInputStream(CONTENT, (int) offset, length));
+    }
+
+    @Test
+    void sessionIsRecoveredWithItsChunksAndCompletes() throws IOException {
+        UploadService first = service();
+        UploadService.UploadSession session = first.createSession("notes.txt", 10, 3, 4);
+        save(first, session, 0, 0, 4);
+        save(first, session, 2, 8, 2);
+
+        UploadService second = service();
+        UploadService.UploadSession recovered = second.getSession(session.getSessionId());
+        assertNotNull(recovered);
+        assertEquals(6, recovered.getUploadedBytes(), "recovered byte count matches the chunks journaled");
+        assertEquals(1, recovered.getMissingChunks().size());
+        assertArrayEquals(new int[]{1, 1}, recovered.getMissingChunks().get(0));
+
+        assertTrue(save(second, recovered, 1, 4, 4));
+        String code = second.finalizeUpload(recovered);
+        FileRegistry.FileEntry entry = registry.getFile(code);
+        assertEquals("notes.txt", entry.getOriginalName());
+        assertArrayEquals(CONTENT, Files.readAllBytes(Path.of(entry.getFilePath())));
+    }
+
+    @Test
+    void tornJournalRecordIsIgnoredAndTruncated() throws IOException {
+        UploadService first = service();
+        UploadService.UploadSession session = first.createSession("torn.bin", 10, 3, 4);
+        save(first, session, 1, 4, 4);
+        Path journal = dir.resolve(session.getSessionId() + ".journal");
+        long intact = Files.size(journal);
+        // Half of a [chunk index][length] record
+        try (FileChannel ch = FileChannel.open(journal, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.allocate(6).putInt(2).putShort((short) 0).flip());
+        }
+
+        UploadService.UploadSession recovered = service().getSession(session.getSessionId());
+        assertEquals(4, recovered.getUploadedBytes());
+        assertEquals(2, recovered.getMissingChunks().size());
+        assertEquals(intact, Files.size(journal));
+    }
+
+    @Test
+    void legacySessionIsFoundAgainByNameAfterRestart() throws IOException {
+        UploadService first = service();
+        UploadService.UploadSession session = first.legacySession("legacy.bin", 10, 3, 4);
+        save(first, session, 0, 0, 4);
+
+        UploadService second = service();
+        UploadService.UploadSession again = second.legacySession("legacy.bin", 10, 3, 4);
+        assertEquals(session.getSessionId(), again.getSessionId());
+        assertEquals(4, again.getUploadedBytes());
+    }
+
+    @Test
+    void legacySessionsOfTheSameNameButAnotherShapeAreKeptApart() throws IOException {
+        UploadService service = service();
+        UploadService.UploadSession session = service.legacySession("legacy.bin", 10, 3, 4);
+        UploadService.UploadSession other = service.legacySession("legacy.bin", 8, 2, 4);
+        assertNotEquals(session.getSessionId(), other.getSessionId());
+        assertEquals(session.getSessionId(), service.legacySession("legacy.bin", 10, 3, 4).getSessionId());
+    }
+
+    @Test
+    void idleLegacySessionIsReplacedInsteadOfResumed() throws IOException {
+        UploadService first = service();
+        UploadService.UploadSession session = first.legacySession("legacy.bin", 10, 3, 4);
+        save(first, session, 0, 0, 4);
+        Path journal = dir.resolve(session.getSessionId() + ".journal");
+        Files.setLastModifiedTime(journal, FileTime.fromMillis(System.currentTimeMillis() - 60 * 60 * 1000));
+
+        UploadService second = service();
+        UploadService.UploadSession fresh = second.legacySession("legacy.bin", 10, 3, 4);
+        assertNotEquals(session.getSessionId(), fresh.getSessionId());
+        assertEquals(0, fresh.getUploadedBytes());
+        assertFalse(Files.exists(journal));
+        assertNull(second.getSession(session.getSessionId()));
+    }
+
+    @Test
+    void oversizedChunkDoesNotOverwriteItsNeighbour() throws IOException {
+        UploadService service = service();
+        UploadService.UploadSession session = service.createSession("over.bin", 10, 3, 4);
+        save(service, session, 1, 4, 4);
+        byte[] oversized = "xxxxxxxx".getBytes(StandardCharsets.US_ASCII);
+        assertThrows(IllegalArgumentException.class,
+                () -> service.saveChunk(session, 0, 0, new ByteArrayInputStream(oversized)));
+
+        save(service, session, 0, 0, 4);
+        assertTrue(save(service, session, 2, 8, 2));
+        String code = service.finalizeUpload(session);
+        assertArrayEquals(CONTENT, Files.readAllBytes(Path.of(registry.getFile(code).getFilePath())));
+    }
+
+    @Test
+    void chunkOfTheWrongLengthIsRejectedAndNotJournaled() throws IOException {
+        UploadService first = service();
+        UploadService.UploadSession session = first.createSession("short.bin", 10, 3, 4);
+        assertThrows(IllegalArgumentException.class, () -> save(first, session, 0, 0, 3));
+        assertEquals(0, session.getUploadedBytes());
+
+        UploadService.UploadSession recovered = service().getSession(session.getSessionId());
+        assertEquals(0, recovered.getUploadedBytes());
+        assertArrayEquals(new int[]{0, 2}, recovered.getMissingChunks().get(0));
+    }
+
+    @Test
+    void uploadsOverTheLimitAreRefused() {
+        UploadService service = service();
+        service.setMaxUploadBytes(8);
+        assertThrows(UploadService.UploadTooLargeException.class, () -> service.createSession("big.bin", 10, 3, 4));
+    }
+}